@@ -0,0 +1,533 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A block-max index stores, for each fixed-size block of each term's
+ * postings, the largest term frequency and the smallest document
+ * length in the block.  The BM25 and Indri term scores increase with
+ * tf and decrease with document length, so these two values bound the
+ * score of every posting in the block for any setting of the model
+ * parameters.  Dynamic pruning (Block-Max WAND) uses the bounds to skip
+ * whole blocks of documents that cannot reach the top k.
+ * <p>
+ * The block-max index is built offline from a Lucene index and stored
+ * in a sidecar file.  Run this class to see a usage message.  Only
+ * terms whose postings fill more than one block are stored; WAND
+ * bounds the other terms without blocks.  Each field has a directory
+ * of its terms, sorted as Lucene sorts them, that gives the offset of
+ * each term's blocks.  Only the list of fields is read when the file
+ * is opened; a term's blocks are read when a query operator asks for
+ * them, after a binary search of the directory on disk.
+ * </p>
+ * <p>
+ * The file is a header (magic number, format version, index version,
+ * block size); for each field, its terms (the term's UTF-8 bytes, the
+ * number of blocks n, and n last docids, n max tfs, and n min lengths)
+ * followed by its directory (for each term, the offset and length of
+ * its bytes); the field table (for each field, its name, number of
+ * terms, and directory offset); and the offset of the field table.
+ * </p>
+ */
+public class BlockMaxIndex {
+
+    //  --------------- Constants and variables ---------------------
+
+    static String usage =
+            "Usage:  java " +
+                    System.getProperty("sun.java.command") +
+                    " -index INDEX_PATH -output FILE [-blockSize N]\n\n" +
+                    "Builds the block-max index of every field that has\n" +
+                    "document lengths.  The default block size is " +
+                    BlockMaxIndex.DEFAULT_BLOCK_SIZE + ".\n";
+
+    public static final int DEFAULT_BLOCK_SIZE = 128;
+
+    private static final int MAGIC = 0x424d4158;    // "BMAX"
+    private static final int FORMAT_VERSION = 2;
+
+    /**
+     * The size of a directory entry:  a long offset and an int length.
+     */
+    private static final int ENTRY_SIZE = 12;
+
+    /**
+     * The file, which is read with positional reads, so several threads
+     * may read it at once.
+     */
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    /**
+     * The directory of each field.
+     */
+    private final Map<String, Directory> directories = new HashMap<String, Directory>();
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     * The blocks of one term's postings.  For the i'th block,
+     * lastDocids[i] is the last docid in the block, maxTfs[i] is the
+     * largest tf, and minLengths[i] is the smallest field length.
+     */
+    public static class Blocks {
+
+        public final int[] lastDocids;
+        public final int[] maxTfs;
+        public final int[] minLengths;
+
+        public Blocks(int[] lastDocids, int[] maxTfs, int[] minLengths) {
+            this.lastDocids = lastDocids;
+            this.maxTfs = maxTfs;
+            this.minLengths = minLengths;
+        }
+
+        /**
+         * Get the number of blocks.
+         *
+         * @return The number of blocks.
+         */
+        public int size() {
+            return this.lastDocids.length;
+        }
+    }
+
+    /**
+     * Where a field's directory is in the file, and its number of terms.
+     */
+    private static class Directory {
+
+        private final int numTerms;
+        private final long offset;
+
+        private Directory(int numTerms, long offset) {
+            this.numTerms = numTerms;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * An output stream that counts the bytes written to it, so that
+     * offsets of files larger than 2 GB can be recorded.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count = 0;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.count += len;
+        }
+    }
+
+    /**
+     * A forward-only iterator over score bounds of blocks of postings,
+     * which are computed by a query operator for its retrieval model.
+     * Docids passed to the iterator must not decrease.
+     */
+    public static class Cursor {
+
+        private final int[] lastDocids;
+        private final double[] bounds;
+        private int block = 0;
+
+        /**
+         * @param lastDocids The last docid of each block.
+         * @param bounds     The score bound of each block.
+         */
+        public Cursor(int[] lastDocids, double[] bounds) {
+            this.lastDocids = lastDocids;
+            this.bounds = bounds;
+        }
+
+        /**
+         * A cursor with one block that covers every document.
+         *
+         * @param bound The score bound.
+         */
+        public Cursor(double bound) {
+            this(new int[]{Integer.MAX_VALUE}, new double[]{bound});
+        }
+
+        /**
+         * Move to the block that covers the specified docid.
+         *
+         * @param docid An internal document id.
+         */
+        private void advanceTo(int docid) {
+            while ((this.block < this.lastDocids.length) &&
+                    (this.lastDocids[this.block] < docid)) {
+                this.block++;
+            }
+        }
+
+        /**
+         * Get the score bound of the block that covers a docid.
+         *
+         * @param docid An internal document id.
+         * @return The bound, or 0 if docid is after the last block.
+         */
+        public double getBound(int docid) {
+            this.advanceTo(docid);
+            return (this.block < this.bounds.length) ? this.bounds[this.block] : 0.0;
+        }
+
+        /**
+         * Get the last docid of the block that covers a docid.
+         *
+         * @param docid An internal document id.
+         * @return The last docid of the block, or MAX_VALUE if docid is
+         * after the last block.
+         */
+        public int getBlockEnd(int docid) {
+            this.advanceTo(docid);
+            return (this.block < this.lastDocids.length) ?
+                    this.lastDocids[this.block] : Integer.MAX_VALUE;
+        }
+    }
+
+    //  --------------- Methods ---------------------------------------
+
+    private BlockMaxIndex(RandomAccessFile file) {
+        this.file = file;
+        this.channel = file.getChannel();
+    }
+
+    /**
+     * Get the blocks of a term.  The term is found by a binary search
+     * of its field's directory, and its blocks are read from the file.
+     *
+     * @param term  The processed term string.
+     * @param field The field that the term occurs in.
+     * @return The blocks, or null if the term isn't in the block-max index.
+     * @throws java.io.IOException Error reading the file.
+     */
+    public Blocks getBlocks(String term, String field) throws IOException {
+
+        Directory directory = this.directories.get(field);
+
+        if (directory == null)
+            return null;
+
+        byte[] key = term.getBytes("UTF-8");
+        int lo = 0;
+        int hi = directory.numTerms - 1;
+
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            ByteBuffer entry = this.read(directory.offset + (long) mid * ENTRY_SIZE, ENTRY_SIZE);
+            long offset = entry.getLong();
+            int length = entry.getInt();
+            int c = compare(this.read(offset, length), key);
+
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return this.readBlocks(offset + length);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Read the blocks that start at an offset.
+     */
+    private Blocks readBlocks(long offset) throws IOException {
+
+        int n = this.read(offset, 4).getInt();
+        IntBuffer values = this.read(offset + 4, 12 * n).asIntBuffer();
+        int[] lastDocids = new int[n];
+        int[] maxTfs = new int[n];
+        int[] minLengths = new int[n];
+
+        values.get(lastDocids);
+        values.get(maxTfs);
+        values.get(minLengths);
+
+        return new Blocks(lastDocids, maxTfs, minLengths);
+    }
+
+    /**
+     * Read bytes from the file without moving its file pointer.
+     */
+    private ByteBuffer read(long offset, int length) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, offset + buffer.position()) < 0)
+                throw new EOFException("The block-max index is truncated.");
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Compare a term's bytes to a key as unsigned bytes, which is the
+     * order of Lucene's terms.
+     */
+    private static int compare(ByteBuffer term, byte[] key) {
+
+        int n = Math.min(term.remaining(), key.length);
+
+        for (int i = 0; i < n; i++) {
+            int c = (term.get(i) & 0xff) - (key[i] & 0xff);
+
+            if (c != 0)
+                return c;
+        }
+
+        return term.remaining() - key.length;
+    }
+
+    /**
+     * Close the file.
+     *
+     * @throws java.io.IOException Error closing the file.
+     */
+    public void close() throws IOException {
+        this.file.close();
+    }
+
+    /**
+     * Open the block-max index of an index.  The field table is read;
+     * the blocks of terms are read when they are needed.  If the file
+     * was built for a different version of the index, or in another
+     * format, null is returned.
+     *
+     * @param file   A file written by {@link #main}.
+     * @param reader The index that the block-max index must describe.
+     * @return The block-max index, or null.
+     * @throws java.io.IOException Error reading the file.
+     */
+    public static BlockMaxIndex load(File file, IndexReader reader)
+            throws IOException {
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        BlockMaxIndex index = null;
+
+        try {
+            if ((in.readInt() != MAGIC) ||
+                    (in.readInt() != FORMAT_VERSION) ||
+                    (in.readLong() != Idx.getIndexVersion(reader))) {
+                return null;
+            }
+
+            in.readInt();    // The block size is informational.
+
+            in.seek(in.length() - 8);
+            in.seek(in.readLong());
+
+            index = new BlockMaxIndex(in);
+            int numFields = in.readInt();
+
+            for (int f = 0; f < numFields; f++) {
+                String field = in.readUTF();
+                int numTerms = in.readInt();
+                index.directories.put(field, new Directory(numTerms, in.readLong()));
+            }
+
+            return index;
+        } finally {
+            if (index == null)
+                in.close();
+        }
+    }
+
+    /**
+     * Build the block-max index of every field that has document
+     * lengths and write it to a file.  Terms whose postings fit in one
+     * block aren't written.
+     *
+     * @param reader    The index.
+     * @param file      The file to write.
+     * @param blockSize The number of postings in a block.
+     * @throws java.io.IOException Error accessing the index or the file.
+     */
+    public static void build(IndexReader reader, File file, int blockSize)
+            throws IOException {
+
+        Fields fields = MultiFields.getFields(reader);
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        CountingOutputStream counter = new CountingOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        DataOutputStream out = new DataOutputStream(counter);
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(Idx.getIndexVersion(reader));
+            out.writeInt(blockSize);
+
+            int[] lastDocids = new int[16];
+            int[] maxTfs = new int[16];
+            int[] minLengths = new int[16];
+
+            Map<String, Directory> directories = new HashMap<String, Directory>();
+
+            for (String field : fields) {
+                NumericDocValues lengths = MultiDocValues.getNormValues(reader, field);
+
+                if (lengths == null)
+                    continue;
+
+                TermsEnum ithTerm = fields.terms(field).iterator(null);
+                DocsEnum docs = null;
+                BytesRef term;
+
+                // the directory entries of the field's terms
+                long[] offsets = new long[16];
+                int[] keyLengths = new int[16];
+                int numTerms = 0;
+
+                while ((term = ithTerm.next()) != null) {
+
+                    // the postings of a term with df <= blockSize fit in one block
+                    if (ithTerm.docFreq() <= blockSize)
+                        continue;
+
+                    docs = ithTerm.docs(liveDocs, docs, DocsEnum.FLAG_FREQS);
+
+                    int n = 0;
+                    int inBlock = 0;
+                    int docid;
+
+                    while ((docid = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+
+                        if (inBlock == 0) {
+                            if (n == lastDocids.length) {
+                                lastDocids = Arrays.copyOf(lastDocids, 2 * n);
+                                maxTfs = Arrays.copyOf(maxTfs, 2 * n);
+                                minLengths = Arrays.copyOf(minLengths, 2 * n);
+                            }
+
+                            maxTfs[n] = 0;
+                            minLengths[n] = Integer.MAX_VALUE;
+                            n++;
+                        }
+
+                        lastDocids[n - 1] = docid;
+                        maxTfs[n - 1] = Math.max(maxTfs[n - 1], docs.freq());
+                        minLengths[n - 1] = Math.min(minLengths[n - 1], (int) lengths.get(docid));
+
+                        if (++inBlock == blockSize)
+                            inBlock = 0;
+                    }
+
+                    // deleted documents may leave only one block
+                    if (n <= 1)
+                        continue;
+
+                    if (numTerms == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, 2 * numTerms);
+                        keyLengths = Arrays.copyOf(keyLengths, 2 * numTerms);
+                    }
+
+                    offsets[numTerms] = counter.count;
+                    keyLengths[numTerms] = term.length;
+                    numTerms++;
+
+                    out.write(term.bytes, term.offset, term.length);
+                    out.writeInt(n);
+
+                    for (int i = 0; i < n; i++)
+                        out.writeInt(lastDocids[i]);
+                    for (int i = 0; i < n; i++)
+                        out.writeInt(maxTfs[i]);
+                    for (int i = 0; i < n; i++)
+                        out.writeInt(minLengths[i]);
+                }
+
+                directories.put(field, new Directory(numTerms, counter.count));
+
+                for (int i = 0; i < numTerms; i++) {
+                    out.writeLong(offsets[i]);
+                    out.writeInt(keyLengths[i]);
+                }
+            }
+
+            long fieldTable = counter.count;
+
+            out.writeInt(directories.size());
+
+            for (Map.Entry<String, Directory> entry : directories.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().numTerms);
+                out.writeLong(entry.getValue().offset);
+            }
+
+            out.writeLong(fieldTable);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @param args See the usage message.
+     * @throws java.io.IOException Error accessing the index or the file.
+     */
+    public static void main(String[] args) throws IOException {
+
+        String indexPath = null;
+        String output = null;
+        int blockSize = DEFAULT_BLOCK_SIZE;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if ("-index".equals(args[i])) {
+                indexPath = args[i + 1];
+            } else if ("-output".equals(args[i])) {
+                output = args[i + 1];
+            } else if ("-blockSize".equals(args[i])) {
+                blockSize = Integer.parseInt(args[i + 1]);
+            } else {
+                System.err.println("\nWarning:  Unknown argument " + args[i]
+                        + " ignored.");
+            }
+        }
+
+        if ((indexPath == null) || (output == null) || (blockSize < 1)) {
+            System.err.println(usage);
+            System.exit(1);
+        }
+
+        IndexReader reader =
+                DirectoryReader.open(FSDirectory.open(new File(indexPath)));
+
+        Timer timer = new Timer();
+        timer.start();
+        build(reader, new File(output), blockSize);
+        timer.stop();
+
+        System.out.println("Built " + output + " in " + timer);
+        reader.close();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The statistics of a collection that retrieval models use:  the number
+ * of documents, and for each field, the number of documents that have
+ * the field, the total number of term occurrences in the field, and its
+ * average length.  The statistics are read from the index once, when it
+ * is opened, so they don't need to be read for each document, and every
+ * thread that uses the index sees the same values.
+ */
+public class CollectionStats {
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     * The statistics of one field.
+     */
+    public static class FieldStats {
+
+        public final int docCount;
+        public final long sumTotalTermFreq;
+        public final double avgLength;      // sumTotalTermFreq / docCount
+
+        public FieldStats(int docCount, long sumTotalTermFreq) {
+            this.docCount = docCount;
+            this.sumTotalTermFreq = sumTotalTermFreq;
+            this.avgLength = ((double) sumTotalTermFreq) / docCount;
+        }
+    }
+
+    //  --------------- Constants and variables ---------------------
+
+    /**
+     * The statistics of a field that isn't in the index.
+     */
+    private static final FieldStats EMPTY = new FieldStats(0, 0);
+
+    public final long numDocs;
+    private final Map<String, FieldStats> fields = new HashMap<String, FieldStats>();
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * Read the statistics of an index.
+     *
+     * @param reader The index.
+     * @throws java.io.IOException Error accessing the index.
+     */
+    public CollectionStats(IndexReader reader) throws IOException {
+
+        this.numDocs = reader.numDocs();
+
+        for (String field : MultiFields.getIndexedFields(reader)) {
+            this.fields.put(field, new FieldStats(reader.getDocCount(field),
+                    reader.getSumTotalTermFreq(field)));
+        }
+    }
+
+    /**
+     * Get the statistics of a field.
+     *
+     * @param fieldName The field name.
+     * @return The statistics, which are 0 if the field isn't indexed.
+     */
+    public FieldStats getFieldStats(String fieldName) {
+        FieldStats stats = this.fields.get(fieldName);
+        return (stats == null) ? EMPTY : stats;
+    }
+}
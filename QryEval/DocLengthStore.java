@@ -8,27 +8,99 @@ import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.NumericDocValues;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * <p>
+ * Each field has an integer id, so that query operators can look up
+ * the field once, when they are initialized, and then get lengths by
+ * id.  If the store is dense, the lengths of every field are copied
+ * into an array indexed by docid when the store is created, which
+ * operators may index directly; otherwise they are read from the
+ * Lucene norms on each call.
+ * </p>
  */
 public class DocLengthStore {
 
     private IndexReader reader;
-    private Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+    private Map<String, Integer> fieldIds = new HashMap<String, Integer>();
+    private NumericDocValues[] values;
+
+    /**
+     * The lengths of each field, indexed by field id and docid, or null
+     * if the store isn't dense.
+     */
+    private int[][] lengths = null;
 
     /**
      * @param reader IndexReader object created in {@link Idx}.
      */
     public DocLengthStore(IndexReader reader) throws IOException {
+        this(reader, false);
+    }
+
+    /**
+     * @param reader IndexReader object created in {@link Idx}.
+     * @param dense  True to load the lengths of every field into memory.
+     */
+    public DocLengthStore(IndexReader reader, boolean dense) throws IOException {
         this.reader = reader;
+
+        List<NumericDocValues> norms = new ArrayList<NumericDocValues>();
+
         for (String field : MultiFields.getIndexedFields(reader)) {
-            this.values.put(field, MultiDocValues.getNormValues(reader, field));
+            this.fieldIds.put(field, norms.size());
+            norms.add(MultiDocValues.getNormValues(reader, field));
+        }
+
+        this.values = norms.toArray(new NumericDocValues[norms.size()]);
+
+        if (dense) {
+            int maxDoc = reader.maxDoc();
+            this.lengths = new int[this.values.length][];
+
+            for (int i = 0; i < this.values.length; i++) {
+                if (this.values[i] == null)     // the field doesn't have norms
+                    continue;
+
+                this.lengths[i] = new int[maxDoc];
+
+                for (int docid = 0; docid < maxDoc; docid++)
+                    this.lengths[i][docid] = (int) this.values[i].get(docid);
+            }
         }
     }
 
+    /**
+     * Returns the id of the specified field.
+     *
+     * @param fieldname Name of field to access lengths.
+     * @return The field id, or -1 if the field isn't indexed.
+     */
+    public int getFieldId(String fieldname) {
+        Integer id = this.fieldIds.get(fieldname);
+        return (id == null) ? -1 : id;
+    }
+
+    /**
+     * Returns the lengths of the specified field, indexed by docid, so
+     * that a query operator can index them directly.
+     *
+     * @param fieldId The id of the field, from {@link #getFieldId}.
+     * @return The lengths, or null if the store isn't dense or the
+     *         field doesn't have lengths.
+     */
+    public int[] getDocLengths(int fieldId) {
+        if ((this.lengths == null) || (fieldId < 0))
+            return null;
+
+        return this.lengths[fieldId];
+    }
+
     /**
      * Returns the length of the specified field in the specified document.
      *
@@ -37,6 +109,19 @@ public class DocLengthStore {
      * @param docid     The internal docid in the lucene index.
      */
     public long getDocLength(String fieldname, int docid) throws IOException {
-        return values.get(fieldname).get(docid);
+        return getDocLength(getFieldId(fieldname), docid);
+    }
+
+    /**
+     * Returns the length of the specified field in the specified document.
+     *
+     * @param fieldId The id of the field, from {@link #getFieldId}.
+     * @param docid   The internal docid in the lucene index.
+     */
+    public long getDocLength(int fieldId, int docid) throws IOException {
+        if ((this.lengths != null) && (this.lengths[fieldId] != null))
+            return this.lengths[fieldId][docid];
+
+        return this.values[fieldId].get(docid);
     }
 }
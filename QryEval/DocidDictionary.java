@@ -0,0 +1,282 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * DocidDictionary maps external document ids (e.g.,
+ * clueweb09-enwp00-88-09710) to internal document ids and back.
+ * <p>
+ * The external ids are stored as a sorted string table:  one byte
+ * array that contains the UTF-8 bytes of every id in sorted order,
+ * and an array of offsets into it.  An external id is found by binary
+ * search.  A second array maps each internal id to its entry in the
+ * table.  The table is built from the externalId field's term
+ * dictionary, which Lucene stores in sorted order, so building it does
+ * not load any stored documents.  It may be saved to a file and
+ * loaded from it later, which is faster than building it again.
+ * </p>
+ */
+public class DocidDictionary {
+
+    //  --------------- Constants and variables ---------------------
+
+    private static final String FIELD = "externalId";
+    private static final int MAGIC = 0x44494443;    // "DIDC"
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The UTF-8 bytes of the external ids, in sorted order.  The i'th
+     * id is bytes[offsets[i]] to bytes[offsets[i+1]] (exclusive).
+     */
+    private byte[] bytes;
+    private int[] offsets;
+
+    /**
+     * The internal id of each entry in the sorted table.
+     */
+    private int[] internalIds;
+
+    /**
+     * The entry in the sorted table of each internal id, or -1.
+     */
+    private int[] entries;
+
+    /**
+     * The version of the index that the dictionary describes.
+     */
+    private long indexVersion;
+
+    //  --------------- Methods ---------------------------------------
+
+    private DocidDictionary() {
+    }
+
+    /**
+     * Build the dictionary for an index.
+     *
+     * @param reader IndexReader object created in {@link Idx}.
+     * @throws java.io.IOException Error accessing the index.
+     */
+    public DocidDictionary(IndexReader reader) throws IOException {
+
+        this.indexVersion = Idx.getIndexVersion(reader);
+        this.entries = new int[reader.maxDoc()];
+        Arrays.fill(this.entries, -1);
+
+        Terms terms = MultiFields.getTerms(reader, FIELD);
+        int capacity = (terms == null) ? 0 : Math.max(0, (int) terms.size());
+
+        this.bytes = new byte[16 * capacity];
+        this.offsets = new int[capacity + 1];
+        this.internalIds = new int[capacity];
+
+        if (terms == null) {
+            return;
+        }
+
+        //  Each (external id, internal id) pair is an entry.  Terms are
+        //  enumerated in sorted order, so the table is sorted.
+
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        TermsEnum ithTerm = terms.iterator(null);
+        DocsEnum docs = null;
+        BytesRef term;
+        int n = 0;
+
+        while ((term = ithTerm.next()) != null) {
+            docs = ithTerm.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+
+            int iid;
+            while ((iid = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+
+                if (n == this.internalIds.length) {
+                    this.internalIds = Arrays.copyOf(this.internalIds, 2 * n + 1);
+                    this.offsets = Arrays.copyOf(this.offsets, 2 * n + 2);
+                }
+
+                int start = this.offsets[n];
+
+                if (start + term.length > this.bytes.length) {
+                    this.bytes = Arrays.copyOf(this.bytes,
+                            Math.max(start + term.length, 2 * this.bytes.length));
+                }
+
+                System.arraycopy(term.bytes, term.offset, this.bytes, start, term.length);
+                this.offsets[n + 1] = start + term.length;
+                this.internalIds[n] = iid;
+                this.entries[iid] = n;
+                n++;
+            }
+        }
+
+        //  Trim the arrays to their final size.
+
+        this.bytes = Arrays.copyOf(this.bytes, this.offsets[n]);
+        this.offsets = Arrays.copyOf(this.offsets, n + 1);
+        this.internalIds = Arrays.copyOf(this.internalIds, n);
+    }
+
+    /**
+     * Get the external document id of an internal document id.
+     *
+     * @param iid The internal document id.
+     * @return The external document id, or null if the document has none.
+     */
+    public String getExternalDocid(int iid) {
+
+        int e = this.entries[iid];
+
+        if (e < 0) {
+            return null;
+        }
+
+        return new String(this.bytes, this.offsets[e],
+                this.offsets[e + 1] - this.offsets[e], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the internal document id of an external document id.  If
+     * several documents have the external id, the one with the lowest
+     * internal id is returned.
+     *
+     * @param externalId The external document id.
+     * @return The internal document id, or -1 if there is no such document.
+     */
+    public int getInternalDocid(String externalId) {
+
+        byte[] key = externalId.getBytes(StandardCharsets.UTF_8);
+
+        //  Find the first entry that is not less than the key.
+
+        int lo = 0;
+        int hi = this.internalIds.length;
+
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+
+            if (this.compare(mid, key) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        if ((lo < this.internalIds.length) && (this.compare(lo, key) == 0)) {
+            return this.internalIds[lo];
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * Compare the i'th entry to a key.  Bytes are compared as unsigned
+     * values, which is the order that Lucene uses for terms.
+     */
+    private int compare(int i, byte[] key) {
+
+        int start = this.offsets[i];
+        int len = this.offsets[i + 1] - start;
+        int n = Math.min(len, key.length);
+
+        for (int j = 0; j < n; j++) {
+            int diff = (this.bytes[start + j] & 0xff) - (key[j] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+
+        return len - key.length;
+    }
+
+    /**
+     * Load a dictionary that was saved for an index.  If the file
+     * doesn't exist, or if it was saved for a different version of the
+     * index, null is returned.
+     *
+     * @param file   A file written by {@link #save}.
+     * @param reader The index that the dictionary must describe.
+     * @return The dictionary, or null.
+     * @throws java.io.IOException Error reading the file.
+     */
+    public static DocidDictionary load(File file, IndexReader reader)
+            throws IOException {
+
+        if (!file.canRead()) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+
+        try {
+            if ((in.readInt() != MAGIC) ||
+                    (in.readInt() != FORMAT_VERSION) ||
+                    (in.readLong() != Idx.getIndexVersion(reader)) ||
+                    (in.readInt() != reader.maxDoc())) {
+                return null;
+            }
+
+            DocidDictionary d = new DocidDictionary();
+            d.indexVersion = Idx.getIndexVersion(reader);
+            d.offsets = readInts(in);
+            d.internalIds = readInts(in);
+            d.entries = readInts(in);
+            d.bytes = new byte[in.readInt()];
+            in.readFully(d.bytes);
+            return d;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Save the dictionary so that it can be loaded instead of built.
+     *
+     * @param file The file to write.
+     * @throws java.io.IOException Error writing the file.
+     */
+    public void save(File file) throws IOException {
+
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(this.indexVersion);
+            out.writeInt(this.entries.length);
+            writeInts(out, this.offsets);
+            writeInts(out, this.internalIds);
+            writeInts(out, this.entries);
+            out.writeInt(this.bytes.length);
+            out.write(this.bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int[] a = new int[in.readInt()];
+        for (int i = 0; i < a.length; i++)
+            a[i] = in.readInt();
+        return a;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] a) throws IOException {
+        out.writeInt(a.length);
+        for (int i = 0; i < a.length; i++)
+            out.writeInt(a[i]);
+    }
+}
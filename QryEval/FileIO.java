@@ -10,13 +10,19 @@ import java.nio.file.Files;
  */
 public class FileIO {
 
-    static String filename = "";
+    private final String filename;
 
-    public static void setFilename(String str) {
-        filename = str;
+    public FileIO(String filename) {
+        this.filename = filename;
     }
 
-    public static void write2File(String str) {
+    /**
+     * Append a string to the file.  Writes from different threads
+     * don't interleave.
+     *
+     * @param str The string to append.
+     */
+    public synchronized void write2File(String str) {
         try {
             // append to file
             FileWriter writer = new FileWriter(filename, true);
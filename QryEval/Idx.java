@@ -5,25 +5,143 @@
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.search.*;
-import org.apache.lucene.store.FSDirectory;
 
-import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * The interface to the Lucene index.
+ * <p>
+ * The index is an {@link IdxHandle}.  The static methods of this class
+ * use the handle that is bound to the calling thread, or if there is
+ * none, the current handle.  A new index may be published while
+ * queries run; a query that should finish on the index that it
+ * started with acquires the current handle and binds it to its
+ * threads:
+ * </p>
+ * <pre>
+ *    IdxHandle index = Idx.acquire ();
+ *    IdxHandle previous = Idx.bind (index);
+ *    try {
+ *      ... evaluate the query ...
+ *    } finally {
+ *      Idx.bind (previous);
+ *      index.decRef ();
+ *    }
+ * </pre>
  */
 public class Idx {
 
     //  --------------- Constants and variables ---------------------
 
-    public static IndexReader INDEXREADER = null;
-    private static DocLengthStore DOCLENGTHSTORE;
+    /**
+     * The current index, which new queries use.
+     */
+    private static final AtomicReference<IdxHandle> CURRENT =
+            new AtomicReference<IdxHandle>();
+
+    /**
+     * The index that is bound to each thread, if any.
+     */
+    private static final ThreadLocal<IdxHandle> BOUND = new ThreadLocal<IdxHandle>();
 
     //  --------------- Methods ---------------------------------------
 
+    /**
+     * Get the index that the calling thread uses:  the handle that is
+     * bound to the thread, or the current handle.
+     *
+     * @return The index.
+     * @throws IllegalStateException No index has been published.
+     */
+    static IdxHandle current() {
+
+        IdxHandle index = Idx.BOUND.get();
+
+        if (index == null)
+            index = Idx.CURRENT.get();
+
+        if (index == null) {
+            throw new IllegalStateException("The index has not been initialized.");
+        }
+
+        return index;
+    }
+
+    /**
+     * Take a reference to the current index.  This doesn't lock:  if a
+     * new index is published at the same moment, and the old one is
+     * closed before the reference is taken, the new one is used.
+     *
+     * @return The current index.  The caller must release it with
+     * IdxHandle.decRef.
+     * @throws IllegalStateException No index has been published.
+     */
+    static IdxHandle acquire() {
+        while (true) {
+            IdxHandle index = Idx.CURRENT.get();
+
+            if (index == null) {
+                throw new IllegalStateException("The index has not been initialized.");
+            }
+
+            if (index.tryIncRef())
+                return index;
+        }
+    }
+
+    /**
+     * Bind an index to the calling thread, so that the static methods
+     * of this class use it.  The caller should hold a reference to the
+     * index while it is bound.
+     *
+     * @param index The index, or null to use the current index.
+     * @return The index that was bound before, or null.
+     */
+    static IdxHandle bind(IdxHandle index) {
+
+        IdxHandle previous = Idx.BOUND.get();
+
+        if (index == null)
+            Idx.BOUND.remove();
+        else
+            Idx.BOUND.set(index);
+
+        return previous;
+    }
+
+    /**
+     * Make an index the current index.  The reference that the caller
+     * holds passes to this class.  The reference to the old index is
+     * released, so it is closed when the queries that use it finish.
+     * The new index gets an empty inverted list cache of the same size
+     * as the old index's cache, if it doesn't have one.
+     *
+     * @param index The new index.
+     * @throws java.io.IOException Error closing the old index.
+     */
+    static void publish(IdxHandle index) throws IOException {
+
+        IdxHandle old = Idx.CURRENT.getAndSet(index);
+
+        if (old == null)
+            return;
+
+        if ((old.getInvListCache() != null) && (index.getInvListCache() == null))
+            index.setInvListCache(new InvListCache(old.getInvListCache().getCapacity()));
+
+        old.decRef();
+    }
+
+    /**
+     * Get the Lucene index.
+     *
+     * @return The index reader.
+     */
+    static IndexReader getIndexReader() {
+        return Idx.current().getReader();
+    }
+
     /**
      * Get the number of documents that contain the specified field.
      *
@@ -32,7 +150,36 @@ public class Idx {
      * @throws java.io.IOException Error accessing the Lucene index.
      */
     static int getDocCount(String fieldName) throws IOException {
-        return Idx.INDEXREADER.getDocCount(fieldName);
+        return Idx.current().getCollectionStats().getFieldStats(fieldName).docCount;
+    }
+
+    /**
+     * Get the block-max index of the index, if one was loaded.
+     *
+     * @return The block-max index, or null.
+     */
+    static BlockMaxIndex getBlockMaxIndex() {
+        return Idx.current().getBlockMaxIndex();
+    }
+
+    /**
+     * Get the cache of inverted lists, if there is one.
+     *
+     * @return The cache, or null.
+     */
+    static InvListCache getInvListCache() {
+        return Idx.current().getInvListCache();
+    }
+
+    /**
+     * Set the cache of inverted lists that query operators share.  The
+     * cache belongs to the current index, because its lists describe
+     * that index; an index that is published later gets its own cache.
+     *
+     * @param cache The cache, or null to not cache inverted lists.
+     */
+    static void setInvListCache(InvListCache cache) {
+        Idx.current().setInvListCache(cache);
     }
 
     /**
@@ -43,8 +190,18 @@ public class Idx {
      * @throws java.io.IOException Error accessing the Lucene index.
      */
     static String getExternalDocid(int iid) throws IOException {
-        Document d = Idx.INDEXREADER.document(iid);
-        String eid = d.get("externalId");
+
+        IdxHandle index = Idx.current();
+        String eid = index.getDocidDictionary().getExternalDocid(iid);
+
+        if (eid == null) {
+
+            //  Not in the dictionary.  Get it from the stored document.
+
+            Document d = index.getReader().document(iid);
+            eid = d.get("externalId");
+        }
+
         return eid;
     }
 
@@ -57,7 +214,29 @@ public class Idx {
      * @throws java.io.IOException Error accessing the Lucene index.
      */
     static int getFieldLength(String fieldName, int docid) throws IOException {
-        return (int) Idx.DOCLENGTHSTORE.getDocLength(fieldName, docid);
+        return (int) Idx.current().getDocLengthStore().getDocLength(fieldName, docid);
+    }
+
+    /**
+     * Get the id of a field, which query operators use to get field
+     * lengths without looking up the field's name in every document.
+     *
+     * @param fieldName The field name.
+     * @return The field id, or -1 if the field isn't indexed.
+     */
+    static int getFieldId(String fieldName) {
+        return Idx.current().getDocLengthStore().getFieldId(fieldName);
+    }
+
+    /**
+     * Get the document lengths of the current index.  Query operators
+     * get it when they are initialized, and then get the lengths of
+     * their fields from it by id, or from its arrays if it is dense.
+     *
+     * @return The document lengths.
+     */
+    static DocLengthStore getDocLengthStore() {
+        return Idx.current().getDocLengthStore();
     }
 
     /**
@@ -72,17 +251,27 @@ public class Idx {
     static int getInternalDocid(String externalId)
             throws Exception {
 
-        Query q = new TermQuery(new Term("externalId", externalId));
-
-        IndexSearcher searcher = new IndexSearcher(Idx.INDEXREADER);
-        TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
-        searcher.search(q, collector);
-        ScoreDoc[] hits = collector.topDocs().scoreDocs;
+        int iid = Idx.current().getDocidDictionary().getInternalDocid(externalId);
 
-        if (hits.length < 1) {
+        if (iid < 0) {
             throw new Exception("External id not found.");
         } else {
-            return hits[0].doc;
+            return iid;
+        }
+    }
+
+    /**
+     * Get the version of an index, which identifies its contents.
+     * Files that are derived from an index record its version.
+     *
+     * @param reader An index.
+     * @return The index version, or -1 if the reader doesn't have one.
+     */
+    static long getIndexVersion(IndexReader reader) {
+        if (reader instanceof DirectoryReader) {
+            return ((DirectoryReader) reader).getVersion();
+        } else {
+            return -1;
         }
     }
 
@@ -93,7 +282,17 @@ public class Idx {
      * @throws java.io.IOException Error accessing the Lucene index.
      */
     public static long getNumDocs() throws IOException {
-        return Idx.INDEXREADER.numDocs();
+        return Idx.current().getCollectionStats().numDocs;
+    }
+
+    /**
+     * Get one more than the largest internal document id.  Unlike
+     * getNumDocs, this includes deleted documents.
+     *
+     * @return The largest internal document id plus 1.
+     */
+    public static int getMaxDoc() {
+        return Idx.current().getReader().maxDoc();
     }
 
     /**
@@ -107,11 +306,23 @@ public class Idx {
      */
     public static long getSumOfFieldLengths(String fieldName)
             throws IOException {
-        return Idx.INDEXREADER.getSumTotalTermFreq(fieldName);
+        return Idx.current().getCollectionStats().getFieldStats(fieldName).sumTotalTermFreq;
+    }
+
+    /**
+     * Get the average length of the specified field in the documents
+     * that contain it.
+     *
+     * @param fieldName The field name.
+     * @return The average field length.
+     */
+    public static double getAvgFieldLength(String fieldName) {
+        return Idx.current().getCollectionStats().getFieldStats(fieldName).avgLength;
     }
 
     /**
-     * Open a Lucene index and the associated DocLengthStore.
+     * Open a Lucene index and the associated DocLengthStore and
+     * DocidDictionary.
      *
      * @param indexPath A directory that contains a Lucene index.
      * @throws IllegalArgumentException Unable to open the index.
@@ -119,24 +330,32 @@ public class Idx {
      */
     public static void initialize(String indexPath)
             throws IllegalArgumentException, IOException {
+        initialize(indexPath, null, null, false);
+    }
 
-        //  Open the Lucene index
-
-        Idx.INDEXREADER =
-                DirectoryReader.open(FSDirectory.open(new File(indexPath)));
-
-        if (Idx.INDEXREADER == null) {
-            throw new IllegalArgumentException("Unable to open the index.");
-        }
-
-        //  Lucene doesn't store field lengths the way that we want them,
-        //  so we have our own document length store.
-
-        Idx.DOCLENGTHSTORE = new DocLengthStore(Idx.INDEXREADER);
-
-        if (Idx.DOCLENGTHSTORE == null) {
-            throw new IllegalArgumentException("Unable to open the document length store.");
-        }
+    /**
+     * Open a Lucene index and the associated DocLengthStore and
+     * DocidDictionary, and make it the current index.  If a dictionary
+     * path is specified, the DocidDictionary is loaded from that file
+     * if it was saved for this index; otherwise it is built and saved
+     * there.  If a block-max index path is specified, the BlockMaxIndex
+     * is loaded from that file.  If the document lengths are dense,
+     * they are loaded into memory, which makes them faster to access.
+     *
+     * @param indexPath         A directory that contains a Lucene index.
+     * @param dictionaryPath    A DocidDictionary file, or null.
+     * @param blockMaxIndexPath A BlockMaxIndex file, or null.
+     * @param denseDocLengths   True to load document lengths into memory.
+     * @throws IllegalArgumentException Unable to open the index, or the
+     *                                  block-max index was built for a
+     *                                  different index.
+     * @throws java.io.IOException      Error accessing the index.
+     */
+    public static void initialize(String indexPath, String dictionaryPath,
+                                  String blockMaxIndexPath, boolean denseDocLengths)
+            throws IllegalArgumentException, IOException {
+        Idx.publish(IdxHandle.open(indexPath, dictionaryPath, blockMaxIndexPath,
+                denseDocLengths));
     }
 
 }
@@ -0,0 +1,238 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An open index:  a Lucene index and the CollectionStats,
+ * DocLengthStore, DocidDictionary, and BlockMaxIndex that describe it.  A handle is
+ * read-only, so any number of threads may use it at once.
+ * <p>
+ * Handles are reference counted.  The handle starts with one
+ * reference, which belongs to whoever opened it (usually
+ * {@link Idx#publish}).  A query that uses a handle takes a reference
+ * (see {@link Idx#acquire}) and releases it when it finishes, so an
+ * index that is replaced stays open until the queries that use it are
+ * done.  The Lucene index is closed when the last reference is
+ * released.
+ * </p>
+ */
+public class IdxHandle {
+
+    //  --------------- Constants and variables ---------------------
+
+    private final IndexReader reader;
+    private final CollectionStats collectionStats;
+    private final DocLengthStore docLengthStore;
+    private final DocidDictionary docidDictionary;
+    private final BlockMaxIndex blockMaxIndex;
+
+    /**
+     * The cache of inverted lists read from this index, or null.  Lists
+     * describe one index, so each handle has its own cache.
+     */
+    private volatile InvListCache invListCache = null;
+
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    //  --------------- Methods ---------------------------------------
+
+    private IdxHandle(IndexReader reader, CollectionStats collectionStats,
+                      DocLengthStore docLengthStore, DocidDictionary docidDictionary,
+                      BlockMaxIndex blockMaxIndex) {
+        this.reader = reader;
+        this.collectionStats = collectionStats;
+        this.docLengthStore = docLengthStore;
+        this.docidDictionary = docidDictionary;
+        this.blockMaxIndex = blockMaxIndex;
+    }
+
+    /**
+     * Open a Lucene index and the associated CollectionStats,
+     * DocLengthStore, and DocidDictionary.  If a dictionary path is specified, the
+     * DocidDictionary is loaded from that file if it was saved for
+     * this index; otherwise it is built and saved there.  If a
+     * block-max index path is specified, the BlockMaxIndex is loaded
+     * from that file.  If the document lengths are dense, they are
+     * loaded into memory.
+     *
+     * @param indexPath         A directory that contains a Lucene index.
+     * @param dictionaryPath    A DocidDictionary file, or null.
+     * @param blockMaxIndexPath A BlockMaxIndex file, or null.
+     * @param denseDocLengths   True to load document lengths into memory.
+     * @return A handle that has one reference.
+     * @throws IllegalArgumentException Unable to open the index, or the
+     *                                  block-max index was built for a
+     *                                  different index.
+     * @throws java.io.IOException      Error accessing the index.
+     */
+    public static IdxHandle open(String indexPath, String dictionaryPath,
+                                 String blockMaxIndexPath, boolean denseDocLengths)
+            throws IllegalArgumentException, IOException {
+
+        //  Open the Lucene index
+
+        IndexReader reader =
+                DirectoryReader.open(FSDirectory.open(new File(indexPath)));
+
+        if (reader == null) {
+            throw new IllegalArgumentException("Unable to open the index.");
+        }
+
+        try {
+
+            //  Collection statistics don't change, so read them once.
+
+            CollectionStats collectionStats = new CollectionStats(reader);
+
+            //  Lucene doesn't store field lengths the way that we want them,
+            //  so we have our own document length store.
+
+            DocLengthStore docLengthStore = new DocLengthStore(reader, denseDocLengths);
+
+            //  Map between external and internal document ids in memory.
+
+            DocidDictionary docidDictionary;
+
+            if (dictionaryPath == null) {
+                docidDictionary = new DocidDictionary(reader);
+            } else {
+                File dictionaryFile = new File(dictionaryPath);
+                docidDictionary = DocidDictionary.load(dictionaryFile, reader);
+
+                if (docidDictionary == null) {
+                    docidDictionary = new DocidDictionary(reader);
+                    docidDictionary.save(dictionaryFile);
+                }
+            }
+
+            //  Block-max indexes are built offline, so a stale one is an error.
+
+            BlockMaxIndex blockMaxIndex = null;
+
+            if (blockMaxIndexPath != null) {
+                blockMaxIndex = BlockMaxIndex.load(new File(blockMaxIndexPath), reader);
+
+                if (blockMaxIndex == null) {
+                    throw new IllegalArgumentException(
+                            "The block-max index " + blockMaxIndexPath +
+                                    " was not built for this index, or must be rebuilt in the current format.");
+                }
+            }
+
+            return new IdxHandle(reader, collectionStats, docLengthStore, docidDictionary, blockMaxIndex);
+        } catch (IOException ex) {
+            reader.close();
+            throw ex;
+        } catch (RuntimeException ex) {
+            reader.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Take a reference to the handle, unless it has been closed.
+     *
+     * @return True if a reference was taken, false if the handle is closed.
+     */
+    public boolean tryIncRef() {
+        while (true) {
+            int count = this.refCount.get();
+
+            if (count <= 0)
+                return false;
+
+            if (this.refCount.compareAndSet(count, count + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Take a reference to the handle.
+     *
+     * @throws IllegalStateException The handle is closed.
+     */
+    public void incRef() {
+        if (!this.tryIncRef()) {
+            throw new IllegalStateException("The index handle is closed.");
+        }
+    }
+
+    /**
+     * Release a reference to the handle.  The index is closed when the
+     * last reference is released.
+     *
+     * @throws java.io.IOException Error closing the index.
+     */
+    public void decRef() throws IOException {
+
+        int count = this.refCount.decrementAndGet();
+
+        if (count == 0) {
+            if (this.blockMaxIndex != null)
+                this.blockMaxIndex.close();
+            this.reader.close();
+        } else if (count < 0) {
+            throw new IllegalStateException("The index handle was released too many times.");
+        }
+    }
+
+    /**
+     * Get the number of references to the handle.
+     *
+     * @return The number of references, or 0 if the handle is closed.
+     */
+    public int getRefCount() {
+        return this.refCount.get();
+    }
+
+    public IndexReader getReader() {
+        return this.reader;
+    }
+
+    public CollectionStats getCollectionStats() {
+        return this.collectionStats;
+    }
+
+    public DocLengthStore getDocLengthStore() {
+        return this.docLengthStore;
+    }
+
+    public DocidDictionary getDocidDictionary() {
+        return this.docidDictionary;
+    }
+
+    /**
+     * Get the block-max index, if one was loaded.
+     *
+     * @return The block-max index, or null.
+     */
+    public BlockMaxIndex getBlockMaxIndex() {
+        return this.blockMaxIndex;
+    }
+
+    /**
+     * Get the cache of inverted lists, if there is one.
+     *
+     * @return The cache, or null.
+     */
+    public InvListCache getInvListCache() {
+        return this.invListCache;
+    }
+
+    /**
+     * Set the cache of inverted lists read from this index.
+     *
+     * @param cache The cache, or null to not cache inverted lists.
+     */
+    public void setInvListCache(InvListCache cache) {
+        this.invListCache = cache;
+    }
+}
@@ -9,8 +9,7 @@ import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.util.BytesRef;
 
 import java.io.IOException;
-import java.util.List;
-import java.util.Vector;
+import java.util.Arrays;
 
 /**
  * This class implements the inverted list data structure and
@@ -22,6 +21,11 @@ public class InvList {
 
     //  --------------- Constants and variables -----------------------
 
+    /**
+     * The default capacity of an inverted list built by a query operator.
+     */
+    private static final int DEFAULT_CAPACITY = 16;
+
     /**
      * Collection term frequency: The number of times that a term
      * occurs across all instances of the specified field.
@@ -41,49 +45,18 @@ public class InvList {
 
     /**
      * Postings that contain information about the occurrence of the
-     * term in individual documents.
+     * term in individual documents.  The n'th posting is stored in
+     * parallel primitive arrays: docids[n], tfs[n], and the positions
+     * pool from offsets[n] (inclusive) to offsets[n+1] (exclusive).
+     * Positions are delta-encoded within each posting; the first
+     * position is absolute, and each later entry is the gap from the
+     * previous position.  This avoids allocating an object per posting
+     * and per location, which matters for frequent terms.
      */
-    public Vector<DocPosting> postings = new Vector<DocPosting>();
-
-    //  --------------- Nested classes --------------------------------
-
-    /**
-     * Utility class that makes it easier to construct postings.
-     */
-    public class DocPosting {
-
-        /**
-         * The internal id of a document that contains the term in
-         * the specified field.
-         */
-        public int docid = 0;
-
-        /**
-         * Term frequency:  The number of times the term occurs in
-         * the specified field of the document.
-         */
-        public int tf = 0;
-
-        /**
-         * The locations where the term occurs in the specified field
-         * of the document.
-         */
-        public Vector<Integer> positions = new Vector<Integer>();
-
-        public DocPosting(int d, int... locations) {
-            this.docid = d;
-            this.tf = locations.length;
-            for (int i = 0; i < locations.length; i++)
-                this.positions.add(locations[i]);
-        }
-
-        public DocPosting(int d, List<Integer> locations) {
-            this.docid = d;
-            this.tf = locations.size();
-            for (int i = 0; i < locations.size(); i++)
-                this.positions.add(locations.get(i));
-        }
-    }
+    private int[] docids;
+    private int[] tfs;
+    private int[] offsets;
+    private int[] positions;
 
     //  --------------- Methods ---------------------------------------
 
@@ -91,6 +64,7 @@ public class InvList {
      * Constructor.  An empty inverted list. Useful for some query operators.
      */
     public InvList() {
+        this.allocate(DEFAULT_CAPACITY, DEFAULT_CAPACITY);
     }
 
     /**
@@ -100,6 +74,7 @@ public class InvList {
      */
     public InvList(String fieldString) {
         this.field = new String(fieldString);
+        this.allocate(DEFAULT_CAPACITY, DEFAULT_CAPACITY);
     }
 
     /**
@@ -120,14 +95,24 @@ public class InvList {
         BytesRef termBytes = new BytesRef(termString);
         Term term = new Term(fieldString, termBytes);
 
-        if (Idx.INDEXREADER.docFreq(term) < 1)
+        int maxDf = Idx.getIndexReader().docFreq(term);
+
+        if (maxDf < 1) {
+            this.allocate(0, 0);
             return;
+        }
+
+        //  Lucene knows how large the inverted list is, so the arrays
+        //  can be allocated once.  These are upper bounds, because they
+        //  include deleted documents.
+
+        this.allocate(maxDf, (int) Idx.getIndexReader().totalTermFreq(term));
 
         //  Lookup the inverted list.
 
         DocsAndPositionsEnum iList =
-                MultiFields.getTermPositionsEnum(Idx.INDEXREADER,
-                        MultiFields.getLiveDocs(Idx.INDEXREADER),
+                MultiFields.getTermPositionsEnum(Idx.getIndexReader(),
+                        MultiFields.getLiveDocs(Idx.getIndexReader()),
                         fieldString, termBytes);
 
         //  Copy from Lucene inverted list format to our inverted list
@@ -138,39 +123,94 @@ public class InvList {
         while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
             int tf = iList.freq();
-            int[] positions = new int[tf];
+            int start = this.offsets[this.df];
+            int prev = 0;
 
-            for (int j = 0; j < tf; j++)
-                positions[j] = iList.nextPosition();
+            this.ensureCapacity(this.df + 1, start + tf);
 
-            this.postings.add(new DocPosting(iList.docID(), positions));
+            for (int j = 0; j < tf; j++) {
+                int position = iList.nextPosition();
+                this.positions[start + j] = position - prev;
+                prev = position;
+            }
+
+            this.docids[this.df] = iList.docID();
+            this.tfs[this.df] = tf;
+            this.offsets[this.df + 1] = start + tf;
             this.df++;
             this.ctf += tf;
         }
     }
 
+    /**
+     * Allocate the posting arrays.
+     *
+     * @param numPostings  Initial capacity, in postings.
+     * @param numPositions Initial capacity, in positions.
+     */
+    private void allocate(int numPostings, int numPositions) {
+        this.docids = new int[numPostings];
+        this.tfs = new int[numPostings];
+        this.offsets = new int[numPostings + 1];
+        this.positions = new int[numPositions];
+    }
+
+    /**
+     * Make sure that the posting arrays can hold the specified number
+     * of postings and positions, growing them if necessary.
+     *
+     * @param numPostings  Required capacity, in postings.
+     * @param numPositions Required capacity, in positions.
+     */
+    private void ensureCapacity(int numPostings, int numPositions) {
+
+        if (numPostings > this.docids.length) {
+            int capacity = Math.max(numPostings, 2 * this.docids.length);
+            this.docids = Arrays.copyOf(this.docids, capacity);
+            this.tfs = Arrays.copyOf(this.tfs, capacity);
+            this.offsets = Arrays.copyOf(this.offsets, capacity + 1);
+        }
+
+        if (numPositions > this.positions.length) {
+            int capacity = Math.max(numPositions, 2 * this.positions.length);
+            this.positions = Arrays.copyOf(this.positions, capacity);
+        }
+    }
+
     /**
      * Append a posting to the posting list.  Posting must be appended
      * in docid order, otherwise this method fails.
      *
      * @param docid     The internal document id of the posting.
-     * @param positions A list of positions where the term occurs.
+     * @param positions An array of positions where the term occurs, in
+     *                  ascending order.
+     * @param tf        The number of entries of positions to use.
      * @return true if the posting was added successfully, otherwise false.
      */
-    public boolean appendPosting(int docid, List<Integer> positions) {
+    public boolean appendPosting(int docid, int[] positions, int tf) {
 
         //  A posting can only be appended if its docid is greater than
         //  the last docid.
 
-        if ((this.df > 1) &&
-                (this.postings.get(this.df - 1).docid >= docid))
+        if ((this.df > 0) &&
+                (this.docids[this.df - 1] >= docid))
             return false;
 
-        DocPosting p = new DocPosting(docid, positions);
+        int start = this.offsets[this.df];
+        int prev = 0;
+
+        this.ensureCapacity(this.df + 1, start + tf);
 
-        this.postings.add(p);
+        for (int j = 0; j < tf; j++) {
+            this.positions[start + j] = positions[j] - prev;
+            prev = positions[j];
+        }
+
+        this.docids[this.df] = docid;
+        this.tfs[this.df] = tf;
+        this.offsets[this.df + 1] = start + tf;
         this.df++;
-        this.ctf += p.tf;
+        this.ctf += tf;
         return true;
     }
 
@@ -181,7 +221,54 @@ public class InvList {
      * @return The internal document id.
      */
     public int getDocid(int docid) {
-        return this.postings.get(docid).docid;
+        return this.docids[docid];
+    }
+
+    /**
+     * Find the first posting at or after the n'th posting whose docid
+     * is at least the specified docid.  This is an exponential
+     * (galloping) search followed by a binary search, so skipping k
+     * postings costs O(log k) instead of O(k); that matters when a
+     * short list is intersected with a long one.
+     *
+     * @param n     The index of the posting to start from.
+     * @param docid The internal document id to search for.
+     * @return The index of the posting, or df if there is none.
+     */
+    public int findDocid(int n, int docid) {
+
+        if ((n >= this.df) || (this.docids[n] >= docid))
+            return n;
+
+        //  Gallop until docids[hi] >= docid or the list ends.  Each pass
+        //  of the loop doubles the step.  docids[lo] < docid is invariant.
+
+        int lo = n;
+        int step = 1;
+        int hi = n + step;
+
+        while ((hi < this.df) && (this.docids[hi] < docid)) {
+            lo = hi;
+            step <<= 1;
+            hi = n + step;
+        }
+
+        hi = Math.min(hi, this.df);
+
+        //  Binary search docids (lo, hi).
+
+        int i = Arrays.binarySearch(this.docids, lo + 1, hi, docid);
+        return (i >= 0) ? i : -(i + 1);
+    }
+
+    /**
+     * Estimate the memory used by the inverted list.
+     *
+     * @return The size, in bytes.
+     */
+    public long getSize() {
+        return 64 + 4L * (this.docids.length + this.tfs.length +
+                this.offsets.length + this.positions.length);
     }
 
     /**
@@ -191,7 +278,30 @@ public class InvList {
      * @return The document's term frequency.
      */
     public int getTf(int n) {
-        return this.postings.get(n).tf;
+        return this.tfs[n];
+    }
+
+    /**
+     * Decode the positions of the n'th document of the inverted list
+     * into a caller-supplied buffer, which must have room for at least
+     * getTf(n) entries.
+     *
+     * @param n      The index of the requested document.
+     * @param buffer The array that receives the positions.
+     * @return The document's term frequency.
+     */
+    public int getPositions(int n, int[] buffer) {
+
+        int start = this.offsets[n];
+        int tf = this.tfs[n];
+        int position = 0;
+
+        for (int j = 0; j < tf; j++) {
+            position += this.positions[start + j];
+            buffer[j] = position;
+        }
+
+        return tf;
     }
 
     /**
@@ -202,11 +312,14 @@ public class InvList {
         System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
         for (int i = 0; i < this.df; i++) {
-            System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-                    + this.postings.elementAt(i).tf + ", locs: ");
+            System.out.print("docid:  " + this.docids[i] + ", tf: "
+                    + this.tfs[i] + ", locs: ");
+
+            int position = 0;
 
-            for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-                System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+            for (int j = this.offsets[i]; j < this.offsets[i + 1]; j++) {
+                position += this.positions[j];
+                System.out.print(position + " ");
             }
 
             System.out.println();
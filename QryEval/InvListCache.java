@@ -0,0 +1,139 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of inverted lists that is shared by all queries.  The cache
+ * is bounded by the estimated size of the lists in memory; when it is
+ * full, the least recently used lists are evicted.  Inverted lists are
+ * read-only after they are built, so a cached list can be used by
+ * several query operators and threads at once.
+ * <p>
+ * Lists are keyed by a string that identifies how they were built,
+ * e.g., "body:apple" for the term apple in the body field.  The cache
+ * is synchronized.  Two threads that miss the same key at the same
+ * time both build the list; the second list replaces the first.
+ * </p>
+ */
+public class InvListCache {
+
+    //  --------------- Constants and variables ---------------------
+
+    private final long capacity;
+    private long size = 0;
+
+    /**
+     * The lists, in order from least to most recently used.
+     */
+    private final LinkedHashMap<String, InvList> lists =
+            new LinkedHashMap<String, InvList>(16, 0.75f, true);
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * @param capacity The largest total size of the cached lists, in bytes.
+     */
+    public InvListCache(long capacity) {
+
+        if (capacity < 0) {
+            throw new IllegalArgumentException("The cache capacity can't be negative.");
+        }
+
+        this.capacity = capacity;
+    }
+
+    /**
+     * Get a list from the cache.
+     *
+     * @param key The key of the list.
+     * @return The list, or null if it isn't cached.
+     */
+    public synchronized InvList get(String key) {
+
+        InvList list = this.lists.get(key);
+
+        if (list == null)
+            this.misses++;
+        else
+            this.hits++;
+
+        return list;
+    }
+
+    /**
+     * Add a list to the cache, evicting the least recently used lists
+     * if there isn't room.  A list that is larger than the cache isn't
+     * cached.
+     *
+     * @param key  The key of the list.
+     * @param list The list.
+     */
+    public synchronized void put(String key, InvList list) {
+
+        long listSize = list.getSize();
+
+        if (listSize > this.capacity)
+            return;
+
+        InvList old = this.lists.put(key, list);
+
+        if (old != null)
+            this.size -= old.getSize();
+
+        this.size += listSize;
+
+        Iterator<Map.Entry<String, InvList>> entries = this.lists.entrySet().iterator();
+
+        while (this.size > this.capacity) {
+            Map.Entry<String, InvList> lru = entries.next();
+            this.size -= lru.getValue().getSize();
+            entries.remove();
+            this.evictions++;
+        }
+    }
+
+    /**
+     * Get the largest total size of the cached lists.
+     *
+     * @return The capacity, in bytes.
+     */
+    public long getCapacity() {
+        return this.capacity;
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    /**
+     * Get the estimated size of the cached lists.
+     *
+     * @return The size, in bytes.
+     */
+    public synchronized long getSize() {
+        return this.size;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return this.lists.size() + " lists, " + this.size + " bytes, " +
+                this.hits + " hits, " + this.misses + " misses, " +
+                this.evictions + " evictions";
+    }
+}
@@ -59,7 +59,9 @@ import java.util.ArrayList;
  * possible to produce them in a document-at-a-time mode because
  * the df and ctf statistics are not known until the inverted list
  * is fully constructed.  QryIop operators provide a document-at-a-time
- * interface to the inverted lists via docIterators.
+ * interface to the inverted lists via docIterators.  The TERM operator
+ * is the exception: its df and ctf are stored in the index, so it can
+ * optionally stream postings from the index instead (see QryIopTerm).
  * </p><p>
  * The data structure that stores query arguments (args) is accessible
  * by subclasses.  If it is accessed via a standard Java iterator, the
@@ -67,7 +69,7 @@ import java.util.ArrayList;
  * query evaluation, which reduces computational efficiency.
  * </p>
  */
-public abstract class Qry {
+public abstract class Qry implements Cloneable {
 
     //  --------------- Constants and variables ---------------------
 
@@ -101,6 +103,12 @@ public abstract class Qry {
     private boolean matchStored = false;    // Operators can cache matches
     private int matchingDocid;
 
+    /**
+     * The WAND algorithms sort the query arguments by docid into
+     * this array, which is reused to avoid allocation.
+     */
+    private int[] wandOrder = null;
+
     //  --------------- Methods ---------------------------------------
 
     /**
@@ -188,6 +196,39 @@ public abstract class Qry {
                         this.getClass().getName());
     }
 
+    /**
+     * Copy the query tree.  The copy has its own iterators, so it can
+     * be evaluated independently of this query, for example over a
+     * different range of docids in another thread.  Materialized
+     * inverted lists are read-only, so the copy shares them with this
+     * query.  The copy must be initialized before it is used; if this
+     * query was initialized, the copy's inverted lists are not
+     * evaluated again.
+     *
+     * @return The copy.
+     */
+    public Qry copy() {
+
+        Qry q;
+
+        try {
+            q = (Qry) super.clone();
+        } catch (CloneNotSupportedException ex) {
+            throw new IllegalStateException("Query operators must be cloneable.", ex);
+        }
+
+        q.args = new ArrayList<Qry>(this.args.size());
+
+        for (Qry q_i : this.args) {
+            q.args.add(q_i.copy());
+        }
+
+        q.docIteratorMatchCache = Qry.INVALID_DOCID;
+        q.matchStored = false;
+        q.wandOrder = null;
+        return q;
+    }
+
     /**
      * Advance the internal document iterator beyond the specified
      * document.
@@ -362,6 +403,201 @@ public abstract class Qry {
         }
     }
 
+    /**
+     * An instantiation of docIteratorHasMatch for score operators that
+     * add up the scores of their arguments.  It uses the WAND dynamic
+     * pruning algorithm to skip documents that cannot score at least
+     * the threshold, and is otherwise like docIteratorHasMatchMin.
+     * Query arguments are sorted by their current docids, and their
+     * upper bounds are accumulated in that order until the threshold
+     * is reached; that argument's docid is the pivot.  No document
+     * before the pivot can reach the threshold.  If the first argument
+     * is on the pivot, the pivot is a match; otherwise the arguments
+     * before the pivot are advanced to it.
+     *
+     * @param r           The retrieval model that determines what is a match
+     * @param upperBounds The largest score that each argument can add to
+     *                    a document's score.
+     * @param threshold   The score that a document must reach.
+     * @return True if the query matches, otherwise false.
+     */
+    protected boolean docIteratorHasMatchWand(RetrievalModel r,
+                                              double[] upperBounds,
+                                              double threshold) {
+
+        while (true) {
+
+            int m = this.wandSortArgs(r);
+            int[] order = this.wandOrder;
+
+            //  Find the pivot.
+
+            int pivot = -1;
+            double bound = 0.0;
+
+            for (int j = 0; j < m; j++) {
+                bound += upperBounds[order[j]];
+
+                if (bound >= threshold) {
+                    pivot = j;
+                    break;
+                }
+            }
+
+            if (pivot < 0) {
+                return false;        // No remaining document can reach the threshold.
+            }
+
+            int pivotDocid = this.args.get(order[pivot]).docIteratorGetMatch();
+
+            if (this.args.get(order[0]).docIteratorGetMatch() == pivotDocid) {
+                docIteratorSetMatchCache(pivotDocid);
+                return true;
+            }
+
+            for (int j = 0; j < pivot; j++) {
+                this.args.get(order[j]).docIteratorAdvanceTo(pivotDocid);
+            }
+        }
+    }
+
+    /**
+     * An instantiation of docIteratorHasMatch for score operators that
+     * add up the scores of their arguments.  It uses the Block-Max WAND
+     * dynamic pruning algorithm, which refines docIteratorHasMatchWand
+     * with the score bounds of blocks of postings.  The pivot is found
+     * with the global upper bounds.  Then the block bounds of the
+     * arguments up to the pivot are added; if they can't reach the
+     * threshold, no document before the end of the shallowest of those
+     * blocks (or the docid of the next argument) can, so those
+     * arguments skip past it without being scored.
+     *
+     * @param r           The retrieval model that determines what is a match
+     * @param upperBounds The largest score that each argument can add to
+     *                    a document's score.
+     * @param blocks      The block bounds of each argument.
+     * @param threshold   The score that a document must reach.
+     * @return True if the query matches, otherwise false.
+     */
+    protected boolean docIteratorHasMatchBlockMaxWand(RetrievalModel r,
+                                                      double[] upperBounds,
+                                                      BlockMaxIndex.Cursor[] blocks,
+                                                      double threshold) {
+
+        while (true) {
+
+            int m = this.wandSortArgs(r);
+            int[] order = this.wandOrder;
+
+            //  Find the pivot.
+
+            int pivot = -1;
+            double bound = 0.0;
+
+            for (int j = 0; j < m; j++) {
+                bound += upperBounds[order[j]];
+
+                if (bound >= threshold) {
+                    pivot = j;
+                    break;
+                }
+            }
+
+            if (pivot < 0) {
+                return false;        // No remaining document can reach the threshold.
+            }
+
+            //  Every argument that is on the pivot document contributes
+            //  to its score.
+
+            int pivotDocid = this.args.get(order[pivot]).docIteratorGetMatch();
+
+            while ((pivot + 1 < m) &&
+                    (this.args.get(order[pivot + 1]).docIteratorGetMatch() == pivotDocid)) {
+                pivot++;
+            }
+
+            double blockBound = 0.0;
+
+            for (int j = 0; j <= pivot; j++) {
+                blockBound += blocks[order[j]].getBound(pivotDocid);
+            }
+
+            if (blockBound >= threshold) {
+
+                if (this.args.get(order[0]).docIteratorGetMatch() == pivotDocid) {
+                    docIteratorSetMatchCache(pivotDocid);
+                    return true;
+                }
+
+                for (int j = 0; j < pivot; j++) {
+                    this.args.get(order[j]).docIteratorAdvanceTo(pivotDocid);
+                }
+
+            } else {
+
+                //  Skip to the first document that might be in a
+                //  different block.
+
+                long next = Integer.MAX_VALUE;
+
+                for (int j = 0; j <= pivot; j++) {
+                    next = Math.min(next, blocks[order[j]].getBlockEnd(pivotDocid) + 1L);
+                }
+
+                if (pivot + 1 < m) {
+                    next = Math.min(next, this.args.get(order[pivot + 1]).docIteratorGetMatch());
+                }
+
+                for (int j = 0; j <= pivot; j++) {
+                    this.args.get(order[j]).docIteratorAdvanceTo((int) next);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sort the query arguments that have matches by their current
+     * docids, for the WAND algorithms.  The order is stored in
+     * wandOrder.
+     *
+     * @param r The retrieval model that determines what is a match
+     * @return The number of arguments that have matches.
+     */
+    private int wandSortArgs(RetrievalModel r) {
+
+        int n = this.args.size();
+
+        if ((this.wandOrder == null) || (this.wandOrder.length < n)) {
+            this.wandOrder = new int[n];
+        }
+
+        int[] order = this.wandOrder;
+        int m = 0;
+
+        //  Insertion sort, which is fast for short queries.
+
+        for (int i = 0; i < n; i++) {
+            Qry q_i = this.args.get(i);
+
+            if (!q_i.docIteratorHasMatch(r))
+                continue;
+
+            int docid_i = q_i.docIteratorGetMatch();
+            int j = m++;
+
+            while ((j > 0) &&
+                    (this.args.get(order[j - 1]).docIteratorGetMatch() > docid_i)) {
+                order[j] = order[j - 1];
+                j--;
+            }
+
+            order[j] = i;
+        }
+
+        return m;
+    }
+
     /**
      * Return the status of the cache.
      *
@@ -432,6 +668,28 @@ public abstract class Qry {
         this.displayName = new String(name);
     }
 
+    /**
+     * Get a canonical string version of this query operator, e.g., to
+     * identify cached results.  Unlike toString, it doesn't depend on
+     * how the query was written (e.g., #AND or #COMBINE), and it
+     * includes everything that affects the results of the operator
+     * (e.g., weights).  Operators with parameters override this method.
+     *
+     * @return The canonical string version of this query operator.
+     */
+    public String getCanonicalString() {
+
+        StringBuilder result = new StringBuilder(this.getClass().getSimpleName()).append('(');
+
+        for (int i = 0; i < this.args.size(); i++) {
+            if (i > 0)
+                result.append(' ');
+            result.append(this.args.get(i).getCanonicalString());
+        }
+
+        return result.append(')').toString();
+    }
+
     /**
      * Get a string version of this query operator.  This is a generic
      * method that works for most query operators.  However, some query
@@ -10,6 +10,7 @@ import org.apache.lucene.util.Version;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * QryEval is a simple application that reads queries from a file,
@@ -55,7 +56,69 @@ public class QryEval {
             new EnglishAnalyzerConfigurable(Version.LUCENE_43);
     private static final String[] TEXT_FIELDS =
             {"body", "title", "url", "inlink"};
-    static Map<String, String> parameters;
+
+    /**
+     * The retrieval model parameters that a parameter sweep may vary.
+     */
+    private static final String[] SWEEP_PARAMETERS =
+            {"BM25:k_1", "BM25:b", "BM25:k_3", "Indri:mu", "Indri:lambda"};
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     * The configuration of a run that query evaluation uses, besides
+     * the retrieval models and parameters:  the number of docid ranges
+     * that each query is divided into, the pool that evaluates the
+     * ranges in parallel, and the cache of query results.  It is
+     * created from the parameter file and passed to the methods that
+     * evaluate queries.
+     */
+    static class RunConfig {
+
+        /**
+         * The number of docid ranges, and the pool that evaluates them.
+         * If there is one range, queries are evaluated by the calling
+         * thread, and the pool is null.
+         */
+        final int partitions;
+        final ForkJoinPool partitionPool;
+
+        /**
+         * The cache of query results, or null if results aren't cached.
+         */
+        final ResultCache resultCache;
+
+        /**
+         * @param parameters The parameters from the parameter file.
+         */
+        RunConfig(Map<String, String> parameters) {
+
+            //  Query results may be cached.  The time to live is in seconds,
+            //  and results may also be stored in a directory.
+
+            if (parameters.containsKey("resultCacheSize")) {
+                String directory = parameters.get("resultCacheDir");
+                this.resultCache = new ResultCache(
+                        Integer.parseInt(parameters.get("resultCacheSize")),
+                        1000 * Long.parseLong(getParameter(parameters, "resultCacheTTL", "0")),
+                        (directory == null) ? null : new File(directory));
+            } else {
+                this.resultCache = null;
+            }
+
+            this.partitions = Integer.parseInt(getParameter(parameters, "partitions", "1"));
+            this.partitionPool = (this.partitions > 1) ? new ForkJoinPool(this.partitions) : null;
+        }
+
+        /**
+         * Release the resources of the run.
+         */
+        void close() {
+            if (this.partitionPool != null) {
+                this.partitionPool.shutdown();
+            }
+        }
+    }
 
     //  --------------- Methods ---------------------------------------
 
@@ -81,7 +144,7 @@ public class QryEval {
             throw new IllegalArgumentException(USAGE);
         }
 
-        parameters = readParameterFile(args[0]);
+        Map<String, String> parameters = readParameterFile(args[0]);
 
         //  Configure query lexical processing to match index lexical
         //  processing.  Initialize the index and retrieval model.
@@ -90,25 +153,51 @@ public class QryEval {
         ANALYZER.setStopwordRemoval(true);
         ANALYZER.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
 
-        Idx.initialize(parameters.get("indexPath"));
-        RetrievalModel model = initializeRetrievalModel(parameters);
-        FileIO.setFilename(parameters.get("trecEvalOutputPath"));
-        FileIO.deleteFile(parameters.get("trecEvalOutputPath"));
-        if (parameters.containsKey("BM25:b"))
-            RetrievalModelBM25.setB(Double.parseDouble(parameters.get("BM25:b")));
-        if (parameters.containsKey("BM25:k_1"))
-            RetrievalModelBM25.setK1(Double.parseDouble(parameters.get("BM25:k_1")));
-        if (parameters.containsKey("BM25:k_3"))
-            RetrievalModelBM25.setK3(Double.parseDouble(parameters.get("BM25:k_3")));
-        if (parameters.containsKey("Indri:lambda"))
-            RetrievalModelIndri.setLambda(Double.parseDouble(parameters.get("Indri:lambda")));
-        if (parameters.containsKey("Indri:mu"))
-            RetrievalModelIndri.setMu(Double.parseDouble(parameters.get("Indri:mu")));
+        //  Document lengths may be loaded into memory, which is faster
+        //  than reading them from the index for each document.
+
+        Idx.initialize(parameters.get("indexPath"), parameters.get("docidDictionaryPath"),
+                parameters.get("blockMaxIndexPath"),
+                Boolean.parseBoolean(getParameter(parameters, "denseDocLengths", "false")));
+
+        //  Inverted lists may be cached across queries.  The size of the
+        //  cache is in megabytes.
+
+        if (parameters.containsKey("invListCacheSize")) {
+            long megabytes = Long.parseLong(parameters.get("invListCacheSize"));
+            Idx.setInvListCache(new InvListCache(megabytes * 1024 * 1024));
+        }
+
+        RunConfig config = new RunConfig(parameters);
+
+        //  A parameter sweep has one retrieval model and one output file
+        //  for each setting of the parameters.
+
+        List<Map<String, String>> settings = getParameterSettings(parameters);
+        RetrievalModel[] models = new RetrievalModel[settings.size()];
+        FileIO[] outputs = new FileIO[settings.size()];
+
+        for (int i = 0; i < models.length; i++) {
+            Map<String, String> setting = settings.get(i);
+            models[i] = initializeRetrievalModel(setting);
+            outputs[i] = new FileIO(setting.get("trecEvalOutputPath"));
+            FileIO.deleteFile(setting.get("trecEvalOutputPath"));
+        }
 
         //  Perform experiments.
-        processQueryFile(parameters.get("queryFilePath"), model);
+        processQueryFile(parameters.get("queryFilePath"), models, outputs, parameters, config);
 
         //  Clean up.
+        if (Idx.getInvListCache() != null) {
+            System.out.println("Inverted list cache:  " + Idx.getInvListCache());
+        }
+
+        if (config.resultCache != null) {
+            System.out.println("Result cache:  " + config.resultCache);
+        }
+
+        config.close();
+
         timer.stop();
         System.out.println("Time:  " + timer);
     }
@@ -125,15 +214,25 @@ public class QryEval {
 
         RetrievalModel model = null;
         String modelString = parameters.get("retrievalAlgorithm").toLowerCase();
+        boolean streamingPostings = Boolean.parseBoolean(getParameter(parameters, "streamingPostings", "false"));
+        String pruning = getParameter(parameters, "pruning", "none");
 
         if (modelString.equals("unrankedboolean")) {
-            model = new RetrievalModelUnrankedBoolean();
+            model = new RetrievalModelUnrankedBoolean(streamingPostings, pruning);
         } else if (modelString.equals("rankedboolean")) {
-            model = new RetrievalModelRankedBoolean();
+            model = new RetrievalModelRankedBoolean(streamingPostings, pruning);
         } else if (modelString.equals("bm25")) {
-            model = new RetrievalModelBM25();
+            model = new RetrievalModelBM25(
+                    Double.parseDouble(getParameter(parameters, "BM25:k_1", "0")),
+                    Double.parseDouble(getParameter(parameters, "BM25:b", "0")),
+                    Double.parseDouble(getParameter(parameters, "BM25:k_3", "0")),
+                    streamingPostings, pruning);
         } else if (modelString.equals("indri")) {
-            model = new RetrievalModelIndri();
+            model = new RetrievalModelIndri(
+                    Double.parseDouble(getParameter(parameters, "Indri:lambda", "0")),
+                    Double.parseDouble(getParameter(parameters, "Indri:mu", "0")),
+                    Boolean.parseBoolean(getParameter(parameters, "Indri:logSpace", "false")),
+                    streamingPostings, pruning);
         } else {
             throw new IllegalArgumentException
                     ("Unknown retrieval model " + parameters.get("retrievalAlgorithm"));
@@ -142,6 +241,61 @@ public class QryEval {
         return model;
     }
 
+    /**
+     * Expand a parameter sweep into its settings.  Each retrieval model
+     * parameter in SWEEP_PARAMETERS may have a comma-separated list of
+     * values; every combination of values is a setting.  The output
+     * file of a setting is trecEvalOutputPath plus a suffix that names
+     * the swept values, e.g., ".k_1=1.2.b=0.75".  If no parameter is
+     * swept, the only setting is the parameters themselves.
+     *
+     * @param parameters The parameters from the parameter file.
+     * @return The parameters of each setting.
+     */
+    static List<Map<String, String>> getParameterSettings(Map<String, String> parameters) {
+
+        List<Map<String, String>> settings = new ArrayList<Map<String, String>>();
+        settings.add(parameters);
+
+        for (String name : SWEEP_PARAMETERS) {
+            String value = parameters.get(name);
+
+            if ((value == null) || (value.indexOf(',') < 0))
+                continue;
+
+            String suffix = "." + name.substring(name.indexOf(':') + 1) + "=";
+            List<Map<String, String>> expanded = new ArrayList<Map<String, String>>();
+
+            for (Map<String, String> setting : settings) {
+                for (String v : value.split(",")) {
+                    Map<String, String> s = new HashMap<String, String>(setting);
+                    s.put(name, v.trim());
+                    s.put("trecEvalOutputPath", setting.get("trecEvalOutputPath") + suffix + v.trim());
+                    expanded.add(s);
+                }
+            }
+
+            settings = expanded;
+        }
+
+        return settings;
+    }
+
+    /**
+     * Get a parameter, or a default value if the parameter file doesn't
+     * specify it.
+     *
+     * @param parameters   The parameters from the parameter file.
+     * @param name         The parameter name.
+     * @param defaultValue The default value.
+     * @return The parameter value.
+     */
+    private static String getParameter(Map<String, String> parameters, String name,
+                                       String defaultValue) {
+        String value = parameters.get(name);
+        return (value == null) ? defaultValue : value;
+    }
+
     /**
      * Optimize the query by removing degenerate nodes produced during
      * query parsing, for example '#NEAR/1 (of the)' which turns into
@@ -393,10 +547,13 @@ public class QryEval {
      *
      * @param qString A string that contains a query.
      * @param model   The retrieval model determines how matching and scoring is done.
-     * @return Search results
+     * @param config  The configuration of the run.
+     * @param k       The number of documents to return.
+     * @return Search results, sorted
      * @throws java.io.IOException Error accessing the index
      */
-    static ScoreList processQuery(String qString, RetrievalModel model) throws IOException {
+    static ScoreList processQuery(String qString, RetrievalModel model, RunConfig config, int k)
+            throws IOException {
 
         Qry q = parseQuery(qString, model);
         q = optimizeQuery(q);
@@ -404,31 +561,230 @@ public class QryEval {
         // Show the query that is evaluated
         System.out.println("    --> " + q);
 
-        if (q != null) {
+        return evaluateQuery(q, model, config, k);
+    }
 
-            ScoreList r = new ScoreList();
+    /**
+     * Evaluate a parsed query.  A query may be evaluated several times,
+     * for example with different retrieval models; its inverted lists
+     * are materialized the first time and reused after that.  If
+     * results are cached, a cached result is returned when there is
+     * one.
+     *
+     * @param q      The query, or null.
+     * @param model  The retrieval model determines how matching and scoring is done.
+     * @param config The configuration of the run.
+     * @param k      The number of documents to return.
+     * @return Search results, sorted, or null if q is null.
+     * @throws java.io.IOException Error accessing the index
+     */
+    static ScoreList evaluateQuery(Qry q, RetrievalModel model, RunConfig config, int k)
+            throws IOException {
+        return evaluateQuery(q, new RetrievalModel[]{model}, config, k)[0];
+    }
+
+    /**
+     * Evaluate a parsed query with several settings of a retrieval
+     * model's parameters, in one pass over the query's postings.  If
+     * results are cached and every setting has a cached result, the
+     * cached results are returned.
+     *
+     * @param q      The query, or null.
+     * @param models The retrieval model of each setting.
+     * @param config The configuration of the run.
+     * @param k      The number of documents to return.
+     * @return Search results of each setting, sorted, or nulls if q is null.
+     * @throws java.io.IOException Error accessing the index
+     */
+    static ScoreList[] evaluateQuery(Qry q, RetrievalModel[] models, RunConfig config, int k)
+            throws IOException {
+
+        ScoreList[] results = new ScoreList[models.length];
+
+        if (q == null)
+            return results;
 
-            if (q.args.size() > 0) {        // Ignore empty queries
+        ResultCache resultCache = config.resultCache;
+        String[] keys = null;
 
-                q.initialize(model);
+        if (resultCache != null) {
+            keys = new String[models.length];
+            boolean cached = true;
 
-                while (q.docIteratorHasMatch(model)) {
-                    int docid = q.docIteratorGetMatch();
-                    double score = ((QrySop) q).getScore(model);
-                    r.add(docid, score);
-                    q.docIteratorAdvancePast(docid);
+            for (int m = 0; m < models.length; m++) {
+                keys[m] = ResultCache.getKey(q, models[m], k);
+                results[m] = resultCache.get(keys[m]);
+                cached = cached && (results[m] != null);
+            }
+
+            if (cached)
+                return results;
+        }
+
+        TopKCollector[] topK;
+
+        if (q.args.size() == 0) {           // Ignore empty queries
+            topK = new TopKCollector[models.length];
+            for (int m = 0; m < models.length; m++)
+                topK[m] = new TopKCollector(k);
+        } else if (config.partitions > 1)
+            topK = evaluatePartitions(q, models, config, k);
+        else
+            topK = evaluateRange(q, models, k, 0, Integer.MAX_VALUE);
+
+        for (int m = 0; m < models.length; m++) {
+            ScoreList r = topK[m].toScoreList();
+
+            //  Log-space Indri scores are converted back to probabilities.
+            //  exp can round distinct scores to ties, so sort again.
+
+            if ((models[m] instanceof RetrievalModelIndri) &&
+                    ((RetrievalModelIndri) models[m]).getLogSpace()) {
+                for (int i = 0; i < r.size(); i++) {
+                    r.setDocidScore(i, Math.exp(r.getDocidScore(i)));
                 }
+                r.sort();
             }
 
-            return r;
-        } else
-            return null;
+            if (keys != null)
+                resultCache.put(keys[m], r);
+
+            results[m] = r;
+        }
+
+        return results;
+    }
+
+    /**
+     * Evaluate a query over one range of docids with each setting of a
+     * retrieval model's parameters.  The query is initialized with the
+     * first setting.  If there are several settings, each document is
+     * scored once for all of them, and dynamic pruning is not used,
+     * because one top k threshold can't serve every setting.
+     *
+     * @param q      The query.
+     * @param models The retrieval model of each setting.
+     * @param k      The number of documents to return.
+     * @param start  The first docid of the range.
+     * @param end    The docid after the range.
+     * @return The top k documents of the range for each setting.
+     * @throws java.io.IOException Error accessing the index
+     */
+    static TopKCollector[] evaluateRange(Qry q, RetrievalModel[] models, int k,
+                                         int start, int end) throws IOException {
+
+        RetrievalModel model = models[0];
+        TopKCollector[] topK = new TopKCollector[models.length];
+        double[] scores = new double[models.length];
+
+        for (int m = 0; m < models.length; m++)
+            topK[m] = new TopKCollector(k);
+
+        q.initialize(model);
+
+        if (models.length == 1)
+            ((QrySop) q).setTopK(topK[0]);
+        else
+            ((QrySop) q).initializeSweep(models);
+
+        q.docIteratorAdvanceTo(start);
+
+        while (q.docIteratorHasMatch(model)) {
+            int docid = q.docIteratorGetMatch();
+
+            if (docid >= end)
+                break;
+
+            if (models.length == 1) {
+                topK[0].add(docid, ((QrySop) q).getScore(model));
+            } else {
+                ((QrySop) q).getScores(scores);
+                for (int m = 0; m < models.length; m++)
+                    topK[m].add(docid, scores[m]);
+            }
+
+            q.docIteratorAdvancePast(docid);
+        }
+
+        return topK;
+    }
+
+    /**
+     * Evaluate a query by dividing the docids into ranges and
+     * evaluating each range in parallel with its own copy of the query.
+     * The query is initialized first, so its inverted lists are read
+     * once and shared by the copies.  Dynamic pruning uses the
+     * threshold of each range's own top k, so it skips fewer documents
+     * than a single pass does, but the merged results are the same.
+     *
+     * @param q      The query.
+     * @param models The retrieval model of each setting.
+     * @param config The configuration of the run.
+     * @param k      The number of documents to return.
+     * @return The top k documents for each setting.
+     * @throws java.io.IOException Error accessing the index
+     */
+    static TopKCollector[] evaluatePartitions(Qry q, final RetrievalModel[] models,
+                                              RunConfig config, final int k)
+            throws IOException {
+
+        TopKCollector[] topK = new TopKCollector[models.length];
+        int maxDoc = Idx.getMaxDoc();
+        int partitions = config.partitions;
+        int size = (maxDoc + partitions - 1) / partitions;
+        List<Callable<TopKCollector[]>> ranges = new ArrayList<Callable<TopKCollector[]>>();
+
+        for (int m = 0; m < models.length; m++)
+            topK[m] = new TopKCollector(k);
+
+        q.initialize(models[0]);
+
+        //  The ranges are evaluated by other threads, which must use the
+        //  same index as this thread.
+
+        final IdxHandle index = Idx.current();
+
+        for (int i = 0; i < partitions; i++) {
+            final Qry copy = q.copy();
+            final int start = i * size;
+            final int end = (i < partitions - 1) ? start + size : Integer.MAX_VALUE;
+
+            ranges.add(new Callable<TopKCollector[]>() {
+                @Override
+                public TopKCollector[] call() throws Exception {
+                    IdxHandle previous = Idx.bind(index);
+
+                    try {
+                        return evaluateRange(copy, models, k, start, end);
+                    } finally {
+                        Idx.bind(previous);
+                    }
+                }
+            });
+        }
+
+        try {
+            for (Future<TopKCollector[]> range : config.partitionPool.invokeAll(ranges)) {
+                TopKCollector[] rangeTopK = range.get();
+                for (int m = 0; m < models.length; m++)
+                    topK[m].addAll(rangeTopK[m]);
+            }
+
+            return topK;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Query evaluation was interrupted.", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IllegalStateException("Error evaluating a range of docids.", ex.getCause());
+        }
     }
 
-    static ScoreList processLetorQuery(String query) {
+    static ScoreList processLetorQuery(String query, RetrievalModelBM25 model, RunConfig config) {
         ScoreList r = null;
         try {
-            r = processQuery(query, new RetrievalModelBM25());
+            r = processQuery(query, model, config, TopKCollector.DEFAULT_K);
         } catch (Exception e) {
 
         }
@@ -437,183 +793,303 @@ public class QryEval {
     }
 
     /**
-     * Process the query file.
+     * Process the query file.  If the threads parameter is greater than
+     * 1, queries are evaluated concurrently by a pool of that many
+     * threads.  Results are written in the order of the query file, but
+     * the progress messages of different queries may be interleaved.
+     * Each query is evaluated with every retrieval model, and the
+     * results of the i'th model are written to the i'th output file.
      *
      * @param queryFilePath
-     * @param model
+     * @param models     The retrieval models.
+     * @param outputs    The output file of each retrieval model.
+     * @param parameters The parameters from the parameter file.
+     * @param config     The configuration of the run.
      * @throws java.io.IOException Error accessing the Lucene index.
      */
-    static void processQueryFile(String queryFilePath, RetrievalModel model) throws IOException {
+    static void processQueryFile(String queryFilePath, final RetrievalModel[] models,
+                                 FileIO[] outputs, final Map<String, String> parameters,
+                                 final RunConfig config) throws IOException {
 
         BufferedReader input = null;
+        ExecutorService pool = null;
+
+        //  The number of documents to retrieve for each query.
+
+        int topK = TopKCollector.DEFAULT_K;
+        if (parameters.containsKey("topK"))
+            topK = Integer.parseInt(parameters.get("topK"));
+        final int k = topK;
+
+        int threads = 1;
+        if (parameters.containsKey("threads"))
+            threads = Integer.parseInt(parameters.get("threads"));
 
         try {
             String qLine;
             input = new BufferedReader(new FileReader(queryFilePath));
 
-            //  Each pass of the loop processes one query.
-            while ((qLine = input.readLine()) != null) {
+            if (threads <= 1) {
 
-                int d = qLine.indexOf(':');
-                if (d < 0) {
-                    throw new IllegalArgumentException("Syntax error:  Missing ':' in query line.");
+                //  Each pass of the loop processes one query.
+                while ((qLine = input.readLine()) != null) {
+                    writeQueryResults(processQueryLine(qLine, models, parameters, config, k),
+                            outputs, parameters);
                 }
 
-                printMemoryUsage(false);
-
-                String qid = qLine.substring(0, d);
-                String query = qLine.substring(d + 1);
-
-                System.out.println("Original Query " + qLine);
+            } else {
 
-                /* Process query or expand query */
-                ScoreList r;
-                String newQuery;
-                // missing or no query expansion
-                if (!parameters.containsKey("fb") || parameters.get("fb").equalsIgnoreCase("false")) {
-                    r = processQuery(query, model);
-                } else {
-                    /* get parameters */
-                    // the number of documents to use for query expansion
-                    int fbDocs = Integer.parseInt(parameters.get("fbDocs"));
-                    // the number of terms that are added to the query
-                    int fbTerms = Integer.parseInt(parameters.get("fbTerms"));
-                    // amount of smoothing used to calculate p(t|d)
-                    int fbMu = Integer.parseInt(parameters.get("fbMu"));
-                    // the weight on the original query
-                    double fbOrigWeight = Double.parseDouble(parameters.get("fbOrigWeight"));
-                    newQuery = "#WAND(" + String.valueOf(fbOrigWeight) + " #AND(" + query + ") ";
-
-                    // if has rank file, read from file
-                    if (parameters.containsKey("fbInitialRankingFile")) {
-                        // construct new score list from file
-                        File file = new File(parameters.get("fbInitialRankingFile"));
-                        FileInputStream fis = new FileInputStream(file);
-                        BufferedReader br = new BufferedReader(new InputStreamReader(fis));
-                        String line;
-                        r = new ScoreList();
-                        while ((line = br.readLine()) != null) {
-                            String[] arr = line.split(" +");
-                            if (arr[0].equals(qid))
-                                r.add(Idx.getInternalDocid(arr[2]), Double.parseDouble(arr[4]));
-                        }
-                        br.close();
-                    }
-                    // no rank file
-                    else {
-                        // get score list from original query
-                        r = processQuery(query, model);
-                    }
-                    r.sort();
-                    // a queue to store top weighted terms
-                    List<Pair> queue = new LinkedList<Pair>();
-                    // recording score of every term
-                    HashMap<String, Double> ScoreMap = new HashMap<String, Double>();
-                    // recording ctf of every term
-                    HashMap<String, Long> CTFMap = new HashMap<String, Long>();
-                    for (int i = 0; i < fbDocs; i++) {
-                        // for every doc-i, get term vector
-                        TermVector vector = new TermVector(r.getDocid(i), "body");
-                        for (int j = 1; j < vector.stemsLength(); j++) {
-                            CTFMap.put(vector.stemString(j), vector.totalStemFreq(j));
-                        }
-                    }
+                //  Submit every query, then write the results in order.
+                pool = Executors.newFixedThreadPool(threads);
+                List<Future<QueryResult[]>> results = new ArrayList<Future<QueryResult[]>>();
 
-                    for (int i = 0; i < fbDocs; i++) {
-                        // for every doc-i, get term vector
-                        TermVector vector = new TermVector(r.getDocid(i), "body");
-                        // for every term in the map, sum up scores for every doc
-                        for (Map.Entry<String, Long> entry : CTFMap.entrySet()) {
-                            String term = entry.getKey();
-                            long ctf = entry.getValue();
-                            double p_term = 0.0;
-                            if (ScoreMap.containsKey(term))
-                                p_term = ScoreMap.get(term);
-                            // default tf
-                            int tf = 0;
-                            if (vector.indexOfStem(term) != -1)
-                                tf = vector.stemFreq(vector.indexOfStem(term));
-                            // length(d)
-                            int doc_len = vector.positionsLength();
-                            // length(C)
-                            long sum_len = Idx.getSumOfFieldLengths("body");
-                            // p_MLE(t|C)
-                            double p_MLE = ((double) ctf) / sum_len;
-                            // p(t|d)
-                            double tmp = (tf + fbMu * p_MLE + 0.0) / (doc_len + fbMu);
-                            tmp *= r.getDocidScore(i) * Math.log(((double) sum_len) / ctf);
-                            p_term += tmp;
-                            ScoreMap.put(term, p_term);
+                while ((qLine = input.readLine()) != null) {
+                    final String line = qLine;
+                    results.add(pool.submit(new Callable<QueryResult[]>() {
+                        @Override
+                        public QueryResult[] call() throws Exception {
+                            return processQueryLine(line, models, parameters, config, k);
                         }
-                    }
-
-                    for (Map.Entry<String, Double> entry : ScoreMap.entrySet()) {
-                        // ignore "app.com" "app,com"
-                        if (entry.getKey().contains(".") || entry.getKey().contains(","))
-                            continue;
-                        // add the element to queue
-                        queue.add(new Pair(entry.getKey(), entry.getValue()));
-                        Collections.sort(queue, new Comparator<Pair>() {
-                            @Override
-                            public int compare(Pair o1, Pair o2) {
-                                return o1.score - o2.score > 0 ? 1 : -1;
-                            }
-                        });
-                        // queue is full
-                        while (queue.size() > fbTerms)
-                            queue.remove(0);
-                    }
-
-                    newQuery += String.valueOf(1 - fbOrigWeight) + " ";
-
-                    String expandQuery = "";
-                    // construct new query
-                    while (!queue.isEmpty()) {
-                        Pair pair = queue.get(0);
-                        queue.remove(0);
-                        pair.score = Math.round(pair.score * 10000.0) / 10000.0;
-                        String queryLine = String.valueOf(pair.score) + " " + pair.term;
-                        expandQuery = queryLine + " " + expandQuery;
-                    }
-                    expandQuery = "#WAND(" + expandQuery + ")";
-                    newQuery += expandQuery + ")";
-                    System.out.println("New Query " + newQuery);
-                    // if need to write to expansion query file
-                    if (parameters.containsKey("fbExpansionQueryFile")) {
-                        FileWriter writer = new FileWriter(parameters.get("fbExpansionQueryFile"), false);
-                        BufferedWriter out = new BufferedWriter(writer);
-                        out.write(qid + ": ");
-                        out.write(expandQuery + "\n");
-                        out.close();
-                    }
-
-                    // process new query, get new result
-                    r = processQuery(newQuery, model);
+                    }));
                 }
 
-                if (r != null) {
-                    r.sort();
-                    writeResults(qid, r);
-                    printResults(qid, r);
+                for (Future<QueryResult[]> result : results) {
+                    writeQueryResults(result.get(), outputs, parameters);
                 }
             }
+        } catch (ExecutionException ex) {
+            ex.getCause().printStackTrace();
         } catch (IOException ex) {
             ex.printStackTrace();
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
             if (input != null) {
                 input.close();
             }
         }
     }
 
-    static class Pair {
-        String term;
-        double score;
-        public Pair(String t, double s) {
-            term = t;
-            score = s;
+    /**
+     * The result of one line of the query file.
+     */
+    static class QueryResult {
+        String qid;
+        ScoreList scores = null;
+        String expansion = null;    // The expansion query, if any
+
+        QueryResult(String qid) {
+            this.qid = qid;
+        }
+    }
+
+    /**
+     * Process one line of the query file with each retrieval model.
+     * The query is parsed once, and its inverted lists are read once
+     * and reused for every model.  If the query is expanded, each model
+     * expands it separately.  This method may be called by several
+     * threads at once, so it must not change shared state.  The query
+     * is evaluated with the index that is current when it starts, even
+     * if a new index is published before it finishes.
+     *
+     * @param qLine      A line of the query file, "qid:query".
+     * @param models     The retrieval models.
+     * @param parameters The parameters from the parameter file.
+     * @param config     The configuration of the run.
+     * @param k          The number of documents to return.
+     * @return The query's results for each model.
+     * @throws Exception Error accessing the Lucene index.
+     */
+    static QueryResult[] processQueryLine(String qLine, RetrievalModel[] models,
+                                          Map<String, String> parameters, RunConfig config,
+                                          int k) throws Exception {
+
+        IdxHandle index = Idx.acquire();
+        IdxHandle previous = Idx.bind(index);
+
+        try {
+            QueryResult[] results = evaluateQueryLine(qLine, models, parameters, config, k);
+
+            //  Look up the external ids now, because the results may be
+            //  written after a new index is published.
+
+            for (QueryResult result : results) {
+                for (int i = 0; (result.scores != null) && (i < result.scores.size()); i++) {
+                    result.scores.getExternalDocid(i);
+                }
+            }
+
+            return results;
+        } finally {
+            Idx.bind(previous);
+            index.decRef();
+        }
+    }
+
+    /**
+     * Evaluate one line of the query file with each retrieval model.
+     * Unless the query is expanded, every model is scored in one pass
+     * over the query's postings.
+     *
+     * @param qLine      A line of the query file, "qid:query".
+     * @param models     The retrieval models.
+     * @param parameters The parameters from the parameter file.
+     * @param config     The configuration of the run.
+     * @param k          The number of documents to return.
+     * @return The query's results for each model.
+     * @throws Exception Error accessing the Lucene index.
+     */
+    private static QueryResult[] evaluateQueryLine(String qLine, RetrievalModel[] models,
+                                                   Map<String, String> parameters,
+                                                   RunConfig config, int k)
+            throws Exception {
+
+        int d = qLine.indexOf(':');
+        if (d < 0) {
+            throw new IllegalArgumentException("Syntax error:  Missing ':' in query line.");
+        }
+
+        printMemoryUsage(false);
+
+        String qid = qLine.substring(0, d);
+        String query = qLine.substring(d + 1);
+
+        System.out.println("Original Query " + qLine);
+
+        QueryResult[] results = new QueryResult[models.length];
+
+        // missing or no query expansion
+        if (!parameters.containsKey("fb") || parameters.get("fb").equalsIgnoreCase("false")) {
+            Qry q = optimizeQuery(parseQuery(query, models[0]));
+
+            // Show the query that is evaluated
+            System.out.println("    --> " + q);
+
+            ScoreList[] scores = evaluateQuery(q, models, config, k);
+
+            for (int i = 0; i < models.length; i++) {
+                results[i] = new QueryResult(qid);
+                results[i].scores = scores[i];
+            }
+        } else {
+            for (int i = 0; i < models.length; i++) {
+                results[i] = expandQuery(qid, query, models[i], parameters, config, k);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Expand a query with pseudo relevance feedback, and evaluate the
+     * expanded query.
+     *
+     * @param qid        The query id.
+     * @param query      The original query.
+     * @param model      The retrieval model.
+     * @param parameters The parameters from the parameter file.
+     * @param config     The configuration of the run.
+     * @param k          The number of documents to return.
+     * @return The results of the expanded query.
+     * @throws Exception Error accessing the Lucene index.
+     */
+    static QueryResult expandQuery(String qid, String query, RetrievalModel model,
+                                   Map<String, String> parameters, RunConfig config,
+                                   int k) throws Exception {
+
+        ScoreList r;
+        String newQuery;
+        QueryResult result = new QueryResult(qid);
+
+        /* get parameters */
+        // the number of documents to use for query expansion
+        int fbDocs = Integer.parseInt(parameters.get("fbDocs"));
+        // the number of terms that are added to the query
+        int fbTerms = Integer.parseInt(parameters.get("fbTerms"));
+        // amount of smoothing used to calculate p(t|d)
+        int fbMu = Integer.parseInt(parameters.get("fbMu"));
+        // the weight on the original query
+        double fbOrigWeight = Double.parseDouble(parameters.get("fbOrigWeight"));
+        newQuery = "#WAND(" + String.valueOf(fbOrigWeight) + " #AND(" + query + ") ";
+
+        // if has rank file, read from file
+        if (parameters.containsKey("fbInitialRankingFile")) {
+            // construct new score list from file
+            File file = new File(parameters.get("fbInitialRankingFile"));
+            FileInputStream fis = new FileInputStream(file);
+            BufferedReader br = new BufferedReader(new InputStreamReader(fis));
+            String line;
+            r = new ScoreList();
+            while ((line = br.readLine()) != null) {
+                String[] arr = line.split(" +");
+                if (arr[0].equals(qid))
+                    r.add(Idx.getInternalDocid(arr[2]), Double.parseDouble(arr[4]));
+            }
+            br.close();
+            r.sort();
+        }
+        // no rank file
+        else {
+            // get score list from original query
+            r = processQuery(query, model, config, Math.max(k, fbDocs));
+        }
+
+        newQuery += String.valueOf(1 - fbOrigWeight) + " ";
+
+        String expandQuery = new QueryExpansion(fbDocs, fbTerms, fbMu).getExpansionQuery(r);
+        newQuery += expandQuery + ")";
+        System.out.println("New Query " + newQuery);
+        result.expansion = expandQuery;
+
+        // process new query, get new result
+        r = processQuery(newQuery, model, config, k);
+
+        result.scores = r;
+        return result;
+    }
+
+    /**
+     * Write the results of one line of the query file for each
+     * retrieval model.
+     *
+     * @param results    The query's results for each model.
+     * @param outputs    The trec_eval output file of each model.
+     * @param parameters The parameters from the parameter file.
+     * @throws java.io.IOException Error accessing the Lucene index.
+     */
+    static void writeQueryResults(QueryResult[] results, FileIO[] outputs,
+                                  Map<String, String> parameters) throws IOException {
+        for (int i = 0; i < results.length; i++) {
+            writeQueryResult(results[i], outputs[i], parameters);
+        }
+    }
+
+    /**
+     * Write the results of one line of the query file.
+     *
+     * @param result     The query's results.
+     * @param output     The trec_eval output file.
+     * @param parameters The parameters from the parameter file.
+     * @throws java.io.IOException Error accessing the Lucene index.
+     */
+    static void writeQueryResult(QueryResult result, FileIO output,
+                                 Map<String, String> parameters) throws IOException {
+
+        // if need to write to expansion query file
+        if ((result.expansion != null) && parameters.containsKey("fbExpansionQueryFile")) {
+            FileWriter writer = new FileWriter(parameters.get("fbExpansionQueryFile"), false);
+            BufferedWriter out = new BufferedWriter(writer);
+            out.write(result.qid + ": ");
+            out.write(result.expansion + "\n");
+            out.close();
+        }
+
+        if (result.scores != null) {
+            writeResults(result.qid, result.scores, output);
+            printResults(result.qid, result.scores);
         }
     }
 
@@ -635,7 +1111,7 @@ public class QryEval {
         if (result.size() >= 1) {
             // best 100 docs
             for (int i = 0; i < result.size() && i < 100; i++) {
-                String DocID = Idx.getExternalDocid(result.getDocid(i));
+                String DocID = result.getExternalDocid(i);
                 String rank = String.valueOf(i + 1);
                 String score = String.valueOf(result.getDocidScore(i));
                 output += queryName + "\t" + Q0 + "\t" + DocID + "\t" + rank + "\t" + score + "\trun-1\n";
@@ -647,13 +1123,13 @@ public class QryEval {
         System.out.print(output);
     }
 
-    static void writeResults(String queryName, ScoreList result) throws IOException {
+    static void writeResults(String queryName, ScoreList result, FileIO file) throws IOException {
         String Q0 = "Q0";
         String output = "";
         if (result.size() >= 1) {
             // best 100 docs
             for (int i = 0; i < result.size() && i < 100; i++) {
-                String DocID = Idx.getExternalDocid(result.getDocid(i));
+                String DocID = result.getExternalDocid(i);
                 String rank = String.valueOf(i + 1);
                 String score = String.valueOf(result.getDocidScore(i));
                 output += queryName + "\t" + Q0 + "\t" + DocID + "\t" + rank + "\t" + score + "\trun-1\n";
@@ -662,7 +1138,7 @@ public class QryEval {
         else {
             output += queryName + "\t" + Q0 + "\tdummy\t1\t0\trun-1\n";
         }
-        FileIO.write2File(output);
+        file.write2File(output);
     }
 
     /**
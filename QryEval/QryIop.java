@@ -3,7 +3,7 @@
  */
 
 import java.io.IOException;
-import java.util.Vector;
+import java.util.Arrays;
 
 /**
  * All query operators that return inverted lists are subclasses of
@@ -26,6 +26,12 @@ import java.util.Vector;
  * The QryIop.locIterator is initialized automatically each time
  * Qry.docIteratorHasMatch finds a match; no additional initialization
  * is required.
+ * </p><p>
+ * Subclasses that do not materialize an inverted list (e.g., a
+ * QryIopTerm that streams postings from the index) override the
+ * docIterator methods, docIteratorGetMatchTf,
+ * docIteratorGetMatchPositions, getDf and getCtf; the locIterator
+ * is implemented on top of those methods.
  */
 public abstract class QryIop extends Qry {
 
@@ -64,6 +70,20 @@ public abstract class QryIop extends Qry {
      */
     private int locIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
 
+    /**
+     * The positions of the document that the docIterator points to now.
+     * Positions are decoded from the inverted list into this buffer the
+     * first time that the locIterator needs them for a document, and
+     * the buffer is reused for later documents.
+     */
+    private int[] locIteratorPositions = new int[16];
+
+    /**
+     * The index of the document whose positions are in
+     * locIteratorPositions, or INVALID_ITERATOR_INDEX.
+     */
+    private int locIteratorPositionsIndex = QryIop.INVALID_ITERATOR_INDEX;
+
     /**
      * Advance the query operator's internal iterator beyond the
      * specified document.
@@ -72,10 +92,8 @@ public abstract class QryIop extends Qry {
      */
     public void docIteratorAdvancePast(int docid) {
 
-        while ((this.docIteratorIndex < this.invertedList.df) &&
-                (this.invertedList.getDocid(this.docIteratorIndex) <= docid)) {
-            this.docIteratorIndex++;
-        }
+        this.docIteratorIndex =
+                this.invertedList.findDocid(this.docIteratorIndex, docid + 1);
 
         this.locIteratorIndex = 0;
     }
@@ -88,10 +106,8 @@ public abstract class QryIop extends Qry {
      */
     public void docIteratorAdvanceTo(int docid) {
 
-        while ((this.docIteratorIndex < this.invertedList.df) &&
-                (this.invertedList.getDocid(this.docIteratorIndex) < docid)) {
-            this.docIteratorIndex++;
-        }
+        this.docIteratorIndex =
+                this.invertedList.findDocid(this.docIteratorIndex, docid);
 
         this.locIteratorIndex = 0;
     }
@@ -101,7 +117,7 @@ public abstract class QryIop extends Qry {
      * any possible document.
      */
     public void docIteratorFinish() {
-        this.docIteratorIndex = this.invertedList.postings.size();
+        this.docIteratorIndex = this.invertedList.df;
     }
 
     /**
@@ -117,13 +133,39 @@ public abstract class QryIop extends Qry {
     }
 
     /**
-     * Return the postings for the document that the docIterator points to
-     * now, or throw an error if the docIterator doesn't point at a document.
+     * Return the term frequency of the document that the docIterator
+     * points to now.  It is an error to call this method if the
+     * docIterator doesn't point at a document.
      *
-     * @return A document posting.
+     * @return The document's term frequency.
      */
-    public InvList.DocPosting docIteratorGetMatchPosting() {
-        return this.invertedList.postings.get(docIteratorIndex);
+    public int docIteratorGetMatchTf() {
+        return this.invertedList.getTf(this.docIteratorIndex);
+    }
+
+    /**
+     * Return the positions of the document that the docIterator points
+     * to now, or throw an error if the docIterator doesn't point at a
+     * document.  The array is owned by the query operator and is
+     * reused for other documents; only the first docIteratorGetMatchTf()
+     * entries are valid, and callers must not modify it.
+     *
+     * @return The document's positions, in ascending order.
+     */
+    public int[] docIteratorGetMatchPositions() {
+
+        if (this.locIteratorPositionsIndex != this.docIteratorIndex) {
+            int tf = this.invertedList.getTf(this.docIteratorIndex);
+
+            if (tf > this.locIteratorPositions.length) {
+                this.locIteratorPositions = new int[Math.max(tf, 2 * this.locIteratorPositions.length)];
+            }
+
+            this.invertedList.getPositions(this.docIteratorIndex, this.locIteratorPositions);
+            this.locIteratorPositionsIndex = this.docIteratorIndex;
+        }
+
+        return this.locIteratorPositions;
     }
 
     /**
@@ -167,6 +209,34 @@ public abstract class QryIop extends Qry {
         return this.field;
     }
 
+    /**
+     * Get the inverted list of the i'th query argument.  Arguments that
+     * stream their postings from the index (see QryIopTerm) don't have
+     * a materialized inverted list, so one is built from the argument's
+     * docIterator; this consumes the argument's iterators.
+     *
+     * @param i The index of the query argument.
+     * @return The argument's inverted list.
+     */
+    protected InvList getArgInvertedList(int i) {
+
+        QryIop q_i = (QryIop) this.args.get(i);
+
+        if (q_i.invertedList != null) {
+            return q_i.invertedList;
+        }
+
+        InvList result = new InvList(q_i.getField());
+
+        while (q_i.docIteratorHasMatch(null)) {
+            int docid = q_i.docIteratorGetMatch();
+            result.appendPosting(docid, q_i.docIteratorGetMatchPositions(), q_i.docIteratorGetMatchTf());
+            q_i.docIteratorAdvancePast(docid);
+        }
+
+        return result;
+    }
+
     /**
      * Evaluate the query operator; the result is an internal inverted
      * list that may be accessed via the internal iterators.
@@ -175,29 +245,129 @@ public abstract class QryIop extends Qry {
      */
     protected abstract void evaluate() throws IOException;
 
+    /**
+     * Get the key of this operator's inverted list in the inverted
+     * list cache.  Operators that have the same key produce the same
+     * inverted list, no matter how the query was written (e.g., the
+     * case of the operator name).  Operators that can be cached
+     * override this method.
+     *
+     * @return The key, or null if the inverted list isn't cached.
+     */
+    public String getCacheKey() {
+        return null;
+    }
+
+    /**
+     * Get a canonical string version of this query operator.  The
+     * cache key identifies the operator's inverted list, so it is used
+     * when there is one.
+     *
+     * @return The canonical string version of this query operator.
+     */
+    @Override
+    public String getCanonicalString() {
+        String key = this.getCacheKey();
+        return (key != null) ? key : super.getCanonicalString();
+    }
+
+    /**
+     * Get a cache key that is made of an operator name and the cache
+     * keys of the arguments, e.g., "#near/1(body:a body:b)".  The
+     * argument keys include the field.
+     *
+     * @param name      The canonical name of the operator.
+     * @param unordered True if the order of the arguments doesn't
+     *                  change the inverted list.
+     * @return The key, or null if an argument isn't cached.
+     */
+    protected String getCacheKey(String name, boolean unordered) {
+
+        String[] keys = new String[this.args.size()];
+
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ((QryIop) this.args.get(i)).getCacheKey();
+
+            if (keys[i] == null)
+                return null;
+        }
+
+        if (unordered)
+            Arrays.sort(keys);
+
+        StringBuilder key = new StringBuilder(name).append('(');
+
+        for (int i = 0; i < keys.length; i++) {
+            if (i > 0)
+                key.append(' ');
+            key.append(keys[i]);
+        }
+
+        return key.append(')').toString();
+    }
+
+    /**
+     * Copy the query tree.  The copy shares this operator's inverted
+     * list, but it has its own iterators.
+     *
+     * @return The copy.
+     */
+    @Override
+    public Qry copy() {
+        QryIop q = (QryIop) super.copy();
+
+        q.docIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
+        q.locIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
+        q.locIteratorPositions = new int[16];
+        q.locIteratorPositionsIndex = QryIop.INVALID_ITERATOR_INDEX;
+        return q;
+    }
+
     /**
      * Initialize the query operator (and its arguments), including any
      * internal iterators; this method must be called before iteration
-     * can begin.
+     * can begin.  The operator is evaluated only the first time that it
+     * is initialized; after that, initialization rewinds the iterators
+     * over the inverted list, so a query can be evaluated again (e.g.,
+     * with other retrieval model parameters) without reading the index.
+     * If inverted lists are cached, the operator is evaluated only if
+     * its inverted list isn't in the cache; its arguments aren't
+     * initialized if it is.
      *
      * @param r A retrieval model (that is ignored)
      */
     public void initialize(RetrievalModel r) throws IOException {
 
-        //  Initialize the query arguments (if any).
+        if (this.invertedList == null) {
 
-        for (Qry q_i : this.args) {
-            ((QryIop) q_i).initialize(r);
-        }
+            InvListCache cache = Idx.getInvListCache();
+            String key = (cache != null) ? this.getCacheKey() : null;
+
+            if (key != null)
+                this.invertedList = cache.get(key);
+
+            if (this.invertedList == null) {
 
-        //  Evaluate the operator.
+                //  Initialize the query arguments (if any).
 
-        this.evaluate();
+                for (Qry q_i : this.args) {
+                    ((QryIop) q_i).initialize(r);
+                }
+
+                //  Evaluate the operator.
+
+                this.evaluate();
+
+                if (key != null)
+                    cache.put(key, this.invertedList);
+            }
+        }
 
         //  Initialize the internal iterators.
 
         this.docIteratorIndex = 0;
         this.locIteratorIndex = 0;
+        this.locIteratorPositionsIndex = QryIop.INVALID_ITERATOR_INDEX;
     }
 
     /**
@@ -217,11 +387,11 @@ public abstract class QryIop extends Qry {
      * @param loc The location to advance beyond.
      */
     public void locIteratorAdvancePast(int loc) {
-        int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-        Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+        int tf = this.docIteratorGetMatchTf();
+        int[] positions = this.docIteratorGetMatchPositions();
 
         while ((this.locIteratorIndex < tf) &&
-                (positions.get(this.locIteratorIndex) <= loc)) {
+                (positions[this.locIteratorIndex] <= loc)) {
             locIteratorIndex++;
         }
     }
@@ -231,8 +401,7 @@ public abstract class QryIop extends Qry {
      * any possible location.
      */
     public void locIteratorFinish() {
-        this.locIteratorIndex =
-                this.invertedList.postings.get(this.docIteratorIndex).tf;
+        this.locIteratorIndex = this.docIteratorGetMatchTf();
     }
 
     /**
@@ -244,8 +413,7 @@ public abstract class QryIop extends Qry {
      * @return The internal id of the current document.
      */
     public int locIteratorGetMatch() {
-        Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-        return locations.get(this.locIteratorIndex);
+        return this.docIteratorGetMatchPositions()[this.locIteratorIndex];
     }
 
     /**
@@ -255,8 +423,7 @@ public abstract class QryIop extends Qry {
      * @return True if the iterator currently points to a location.
      */
     public boolean locIteratorHasMatch() {
-        return (this.locIteratorIndex <
-                this.invertedList.getTf(this.docIteratorIndex));
+        return (this.locIteratorIndex < this.docIteratorGetMatchTf());
     }
 
 }
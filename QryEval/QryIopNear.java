@@ -1,5 +1,5 @@
 import java.io.IOException;
-import java.util.*;
+import java.util.Arrays;
 
 /**
  * For operator NEAR
@@ -13,6 +13,17 @@ public class QryIopNear extends QryIop {
         this.dist = n;
     }
 
+    /**
+     * Get the key of the operator's inverted list in the inverted list
+     * cache.  The distance and the order of the arguments matter.
+     *
+     * @return The key, or null if an argument isn't cached.
+     */
+    @Override
+    public String getCacheKey() {
+        return this.getCacheKey("#near/" + this.dist, false);
+    }
+
     @Override
     protected void evaluate() throws IOException {
 
@@ -21,82 +32,77 @@ public class QryIopNear extends QryIop {
         if (args.size() == 0)
             return;
         if (args.size() == 1) {
-            this.invertedList = ((QryIop) this.args.get(0)).invertedList;
+            this.invertedList = this.getArgInvertedList(0);
             return;
         }
 
-        // iterate each doc, greedy algorithms
-        while (true) {
-            //  init doc_id
-            int doc_id = Qry.INVALID_DOCID;
-
-            if (this.docIteratorHasMatchAll(null))
-                doc_id = this.args.get(0).docIteratorGetMatch();
-            // fail to find a match all
-            if (doc_id == Qry.INVALID_DOCID)
-                break;
-            // the last argument's position in doc
-            List<Integer> positions = new ArrayList<Integer>();
-
-            // iterate each location
-            while (true) {
-                boolean success = false;
-                int position = 0;
-
-                // index from 1 to n-1
-                for (int i = 1; i < this.args.size(); i++) {
-                    // get previous pos
-                    if (!((QryIop) this.args.get(i-1)).locIteratorHasMatch())
-                        break;
-                    int position1 = ((QryIop) this.args.get(i - 1)).locIteratorGetMatch();
+        int n = this.args.size();
 
-                    // go beyond pre pos
-                    ((QryIop) this.args.get(i)).locIteratorAdvancePast(position1);
-                    if (!((QryIop) this.args.get(i)).locIteratorHasMatch())
-                        break;
-                    int position2 = ((QryIop) this.args.get(i)).locIteratorGetMatch();
+        // positions and tf of each argument in the current doc
+        int[][] argPositions = new int[n][];
+        int[] argTfs = new int[n];
+        // index of the next unused position of each argument
+        int[] next = new int[n];
+        // matching positions of the current doc, reused across docs
+        int[] positions = new int[16];
+
+        // iterate each doc that matches all arguments
+        while (this.docIteratorHasMatchAll(null)) {
+            int doc_id = this.args.get(0).docIteratorGetMatch();
+
+            for (int i = 0; i < n; i++) {
+                QryIop q_i = (QryIop) this.args.get(i);
+                argTfs[i] = q_i.docIteratorGetMatchTf();
+                argPositions[i] = q_i.docIteratorGetMatchPositions();
+                next[i] = 0;
+            }
+
+            // number of matches in doc (the last argument's positions)
+            int tf = 0;
+
+            // one forward pass over the positions:  each position of the
+            // first argument starts a chain that takes the next unused
+            // position of each later argument
+            matching:
+            while (next[0] < argTfs[0]) {
+                int position = argPositions[0][next[0]];
+                boolean success = true;
+
+                for (int i = 1; i < n; i++) {
+                    while ((next[i] < argTfs[i]) && (argPositions[i][next[i]] <= position))
+                        next[i]++;
+
+                    // later chains start later, so argument i can't match them
+                    if (next[i] == argTfs[i])
+                        break matching;
 
                     // near condition satisfied?
-                    if (position2 > position1 && position2 - position1 <= this.dist) {
-                        position = position2;
-                        if (i == this.args.size() - 1)
-                            success = true;
-                    } else {
+                    if (argPositions[i][next[i]] - position > this.dist) {
                         success = false;
                         break;
                     }
+
+                    position = argPositions[i][next[i]];
                 }
 
-                // find a legal position
                 if (success) {
-                    positions.add(position);
-                    // move each loc pointer
-                    for (Qry q_i : this.args) {
-                        ((QryIop) q_i).locIteratorAdvance();
-                    }
+                    if (tf == positions.length)
+                        positions = Arrays.copyOf(positions, 2 * tf);
+                    positions[tf++] = position;
+                    // a match uses a position of each argument
+                    for (int i = 0; i < n; i++)
+                        next[i]++;
                 } else {
-                    // move first arg
-                    ((QryIop) this.args.get(0)).locIteratorAdvance();
-                    // if no more match position for the first arg
-                    if (!((QryIop) this.args.get(0)).locIteratorHasMatch())
-                        break;
-                    // reset other pointers to beginning
-                    for (int i = 1; i < this.args.size(); i++) {
-                        ((QryIop) this.args.get(i)).locIteratorReset();
-                        int preposition = ((QryIop) this.args.get(0)).locIteratorGetMatch();
-                        ((QryIop) this.args.get(i)).locIteratorAdvancePast(preposition);
-                    }
-
+                    next[0]++;
                 }
-
             }
 
             // move doc pointer
             for (Qry q_i : this.args)
                 q_i.docIteratorAdvancePast(doc_id);
             // success
-            if (positions.size() > 0)
-                this.invertedList.appendPosting(doc_id, positions);
+            if (tf > 0)
+                this.invertedList.appendPosting(doc_id, positions, tf);
         }
     }
 }
@@ -3,16 +3,24 @@
  */
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Vector;
+import java.util.Arrays;
 
 /**
  * The SYN operator for all retrieval models.
  */
 public class QryIopSyn extends QryIop {
 
+    /**
+     * Get the key of the operator's inverted list in the inverted list
+     * cache.  The order of the arguments doesn't change a synonym list.
+     *
+     * @return The key, or null if an argument isn't cached.
+     */
+    @Override
+    public String getCacheKey() {
+        return this.getCacheKey("#syn", true);
+    }
+
     /**
      * Evaluate the query operator; the result is an internal inverted
      * list that may be accessed via the internal iterators.
@@ -30,6 +38,11 @@ public class QryIopSyn extends QryIop {
             return;
         }
 
+        //  A buffer for the positions of each new posting.  It grows as
+        //  needed and is reused for every document.
+
+        int[] positions = new int[16];
+
         //  Each pass of the loop adds 1 document to result inverted list
         //  until all of the argument inverted lists are depleted.
 
@@ -58,20 +71,26 @@ public class QryIopSyn extends QryIop {
             //  Note:  This implementation assumes that a location will not appear
             //  in two or more arguments.  #SYN (apple apple) would break it.
 
-            List<Integer> positions = new ArrayList<Integer>();
+            int tf = 0;
 
             for (Qry q_i : this.args) {
                 if (q_i.docIteratorHasMatch(null) &&
                         (q_i.docIteratorGetMatch() == minDocid)) {
-                    Vector<Integer> locations_i =
-                            ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-                    positions.addAll(locations_i);
+                    int tf_i = ((QryIop) q_i).docIteratorGetMatchTf();
+                    int[] locations_i = ((QryIop) q_i).docIteratorGetMatchPositions();
+
+                    if (tf + tf_i > positions.length) {
+                        positions = Arrays.copyOf(positions, Math.max(tf + tf_i, 2 * positions.length));
+                    }
+
+                    System.arraycopy(locations_i, 0, positions, tf, tf_i);
+                    tf += tf_i;
                     q_i.docIteratorAdvancePast(minDocid);
                 }
             }
 
-            Collections.sort(positions);
-            this.invertedList.appendPosting(minDocid, positions);
+            Arrays.sort(positions, 0, tf);
+            this.invertedList.appendPosting(minDocid, positions, tf);
         }
     }
 
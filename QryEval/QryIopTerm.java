@@ -2,6 +2,12 @@
  *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
  */
 
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
 import java.io.IOException;
 
 /**
@@ -10,11 +16,49 @@ import java.io.IOException;
  * "#AND (apple pie).  Although it may seem odd to use a query
  * operator to store a term, doing so makes it easy to build
  * structured queries with nested query operators.
+ * <p>
+ * If the retrieval model asks for streaming postings, the TERM
+ * operator does not materialize an inverted list.  Its docIterator
+ * delegates to Lucene's DocsAndPositionsEnum, so skipping (advanceTo)
+ * uses Lucene's skip lists, and the positions of a document are
+ * decoded only if a locIterator or a caller asks for them.  The df
+ * and ctf statistics come from the index, so they include deleted
+ * documents.
+ * </p>
  */
 public class QryIopTerm extends QryIop {
 
     private String term;
 
+    /**
+     * The postings of the term, in streaming mode; null if the
+     * inverted list is materialized.
+     */
+    private DocsAndPositionsEnum postings = null;
+
+    /**
+     * Streaming mode:  The docid, term frequency, and (if decoded)
+     * positions of the document that the docIterator points to now.
+     */
+    private int postingsDocid = DocIdSetIterator.NO_MORE_DOCS;
+    private int postingsTf = 0;
+    private int[] postingsPositions = new int[16];
+    private boolean postingsPositionsDecoded = false;
+
+    /**
+     * Streaming mode:  Corpus statistics from the index.
+     */
+    private int postingsDf = 0;
+    private int postingsCtf = 0;
+
+    /**
+     * Dynamic pruning:  The term's blocks in the block-max index, or
+     * null if it has none.  They are read the first time that the
+     * operator is initialized for a retrieval model that prunes.
+     */
+    private BlockMaxIndex.Blocks blocks = null;
+    private boolean blocksRead = false;
+
     /**
      * The term is assumed to match the body field.
      *
@@ -36,6 +80,62 @@ public class QryIopTerm extends QryIop {
         this.field = fieldString;
     }
 
+    /**
+     * Copy the query operator.  Postings can't be shared, so a copy of
+     * a streaming operator opens its own when it is initialized.
+     *
+     * @return The copy.
+     */
+    @Override
+    public Qry copy() {
+        QryIopTerm q = (QryIopTerm) super.copy();
+
+        q.postings = null;
+        q.postingsDocid = DocIdSetIterator.NO_MORE_DOCS;
+        q.postingsTf = 0;
+        q.postingsPositions = new int[16];
+        q.postingsPositionsDecoded = false;
+        return q;
+    }
+
+    /**
+     * Initialize the query operator, including its internal iterators.
+     * The retrieval model determines whether postings are streamed or
+     * materialized, and whether the term's blocks are read from the
+     * block-max index.
+     *
+     * @param r A retrieval model that guides initialization
+     * @throws java.io.IOException Error accessing the Lucene index.
+     */
+    @Override
+    public void initialize(RetrievalModel r) throws IOException {
+        if ((r != null) && r.getStreamingPostings()) {
+            this.openPostings();
+        } else {
+            this.postings = null;
+            super.initialize(r);
+        }
+
+        if ((r != null) && !r.getPruning().equals("none") && !this.blocksRead) {
+            BlockMaxIndex index = Idx.getBlockMaxIndex();
+
+            if (index != null)
+                this.blocks = index.getBlocks(this.term, this.field);
+
+            this.blocksRead = true;
+        }
+    }
+
+    /**
+     * Get the term's blocks in the block-max index.
+     *
+     * @return The blocks, or null if the term has none or the operator
+     * wasn't initialized for a retrieval model that prunes.
+     */
+    public BlockMaxIndex.Blocks getBlocks() {
+        return this.blocks;
+    }
+
     /**
      * Evaluate the query operator; the result is an internal inverted
      * list that may be accessed via the internal iterators.
@@ -46,6 +146,234 @@ public class QryIopTerm extends QryIop {
         this.invertedList = new InvList(this.term, this.field);
     }
 
+    /**
+     * Get the key of the term's inverted list in the inverted list
+     * cache, "field:term".
+     *
+     * @return The key.
+     */
+    @Override
+    public String getCacheKey() {
+        return this.field + ":" + this.term;
+    }
+
+    /**
+     * Open the term's postings for streaming, and position the
+     * docIterator on the first document.
+     *
+     * @throws java.io.IOException Error accessing the Lucene index.
+     */
+    private void openPostings() throws IOException {
+
+        BytesRef termBytes = new BytesRef(this.term);
+        Term t = new Term(this.field, termBytes);
+
+        this.invertedList = null;
+        this.postingsDf = Idx.getIndexReader().docFreq(t);
+        this.postingsCtf = (int) Idx.getIndexReader().totalTermFreq(t);
+        this.postings = null;
+
+        if (this.postingsDf > 0) {
+            this.postings =
+                    MultiFields.getTermPositionsEnum(Idx.getIndexReader(),
+                            MultiFields.getLiveDocs(Idx.getIndexReader()),
+                            this.field, termBytes);
+        }
+
+        if (this.postings == null) {
+
+            //  The term doesn't occur in the field.  Use an empty enum so
+            //  that the docIterator methods don't need a special case.
+
+            this.postings = new EmptyPostings();
+        }
+
+        this.setPostingsDocid(this.postings.nextDoc());
+    }
+
+    /**
+     * Record the document that the streaming docIterator points to now.
+     *
+     * @param docid The Lucene docid, or NO_MORE_DOCS.
+     * @throws java.io.IOException Error accessing the Lucene index.
+     */
+    private void setPostingsDocid(int docid) throws IOException {
+        this.postingsDocid = docid;
+        this.postingsTf =
+                (docid == DocIdSetIterator.NO_MORE_DOCS) ? 0 : this.postings.freq();
+        this.postingsPositionsDecoded = false;
+        this.locIteratorReset();
+    }
+
+    /**
+     * Advance the query operator's internal iterator beyond the
+     * specified document.
+     *
+     * @param docid The document's internal document id
+     */
+    @Override
+    public void docIteratorAdvancePast(int docid) {
+        if (this.postings == null) {
+            super.docIteratorAdvancePast(docid);
+        } else {
+            this.docIteratorAdvanceTo(docid + 1);
+        }
+    }
+
+    /**
+     * Advance the query operator's internal iterator to the specified
+     * document if it exists, or beyond if it doesn't.
+     *
+     * @param docid The document's internal document id
+     */
+    @Override
+    public void docIteratorAdvanceTo(int docid) {
+
+        if (this.postings == null) {
+            super.docIteratorAdvanceTo(docid);
+            return;
+        }
+
+        if (this.postingsDocid >= docid) {
+            return;
+        }
+
+        try {
+            this.setPostingsDocid(this.postings.advance(docid));
+        } catch (IOException ex) {
+            throw new IllegalStateException("Error reading the postings of " + this, ex);
+        }
+    }
+
+    /**
+     * Advance the query operator's internal iterator beyond the
+     * any possible document.
+     */
+    @Override
+    public void docIteratorFinish() {
+        if (this.postings == null) {
+            super.docIteratorFinish();
+        } else {
+            this.postingsDocid = DocIdSetIterator.NO_MORE_DOCS;
+            this.postingsTf = 0;
+        }
+    }
+
+    /**
+     * Return the id of the document that the query operator's internal
+     * iterator points to now.
+     *
+     * @return The internal id of the current document.
+     */
+    @Override
+    public int docIteratorGetMatch() {
+        if (this.postings == null) {
+            return super.docIteratorGetMatch();
+        } else {
+            return this.postingsDocid;
+        }
+    }
+
+    /**
+     * Return the term frequency of the document that the docIterator
+     * points to now.
+     *
+     * @return The document's term frequency.
+     */
+    @Override
+    public int docIteratorGetMatchTf() {
+        if (this.postings == null) {
+            return super.docIteratorGetMatchTf();
+        } else {
+            return this.postingsTf;
+        }
+    }
+
+    /**
+     * Return the positions of the document that the docIterator points
+     * to now.  In streaming mode, positions are read from the index the
+     * first time that they are requested for a document.
+     *
+     * @return The document's positions, in ascending order.
+     */
+    @Override
+    public int[] docIteratorGetMatchPositions() {
+
+        if (this.postings == null) {
+            return super.docIteratorGetMatchPositions();
+        }
+
+        if (!this.postingsPositionsDecoded) {
+            if (this.postingsTf > this.postingsPositions.length) {
+                this.postingsPositions = new int[Math.max(this.postingsTf, 2 * this.postingsPositions.length)];
+            }
+
+            try {
+                for (int j = 0; j < this.postingsTf; j++) {
+                    this.postingsPositions[j] = this.postings.nextPosition();
+                }
+            } catch (IOException ex) {
+                throw new IllegalStateException("Error reading the postings of " + this, ex);
+            }
+
+            this.postingsPositionsDecoded = true;
+        }
+
+        return this.postingsPositions;
+    }
+
+    /**
+     * Indicates whether the query has a matching document.
+     *
+     * @param r A retrieval model (that is ignored - it can be null)
+     * @return True if the query matches a document, otherwise false.
+     */
+    @Override
+    public boolean docIteratorHasMatch(RetrievalModel r) {
+        if (this.postings == null) {
+            return super.docIteratorHasMatch(r);
+        } else {
+            return (this.postingsDocid != DocIdSetIterator.NO_MORE_DOCS);
+        }
+    }
+
+    /**
+     * Get the collection term frequency (ctf) of the term.
+     *
+     * @return The collection term frequency (ctf).
+     */
+    @Override
+    public int getCtf() {
+        if (this.postings == null) {
+            return super.getCtf();
+        } else {
+            return this.postingsCtf;
+        }
+    }
+
+    /**
+     * Get the document frequency (df) of the term.
+     *
+     * @return The document frequency (df).
+     */
+    @Override
+    public int getDf() {
+        if (this.postings == null) {
+            return super.getDf();
+        } else {
+            return this.postingsDf;
+        }
+    }
+
+    /**
+     * Get the term string.
+     *
+     * @return The term string.
+     */
+    public String getTerm() {
+        return this.term;
+    }
+
     /**
      * Get a string version of this query operator.
      *
@@ -54,4 +382,49 @@ public class QryIopTerm extends QryIop {
     public String toString() {
         return (this.term + "." + this.field);
     }
+
+    /**
+     * The postings of a term that doesn't occur in the index.
+     */
+    private static class EmptyPostings extends DocsAndPositionsEnum {
+
+        private int doc = -1;
+
+        public int nextPosition() {
+            throw new IllegalStateException("There are no positions.");
+        }
+
+        public int startOffset() {
+            return -1;
+        }
+
+        public int endOffset() {
+            return -1;
+        }
+
+        public BytesRef getPayload() {
+            return null;
+        }
+
+        public int freq() {
+            return 0;
+        }
+
+        public int docID() {
+            return this.doc;
+        }
+
+        public int nextDoc() {
+            this.doc = DocIdSetIterator.NO_MORE_DOCS;
+            return this.doc;
+        }
+
+        public int advance(int target) {
+            return this.nextDoc();
+        }
+
+        public long cost() {
+            return 0;
+        }
+    }
 }
@@ -1,6 +1,5 @@
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Created by Silun Wang on 15/10/11.
@@ -13,6 +12,17 @@ public class QryIopWindow extends QryIop {
         this.windowSize = n;
     }
 
+    /**
+     * Get the key of the operator's inverted list in the inverted list
+     * cache.  The window size and the arguments matter.
+     *
+     * @return The key, or null if an argument isn't cached.
+     */
+    @Override
+    public String getCacheKey() {
+        return this.getCacheKey("#window/" + this.windowSize, false);
+    }
+
     @Override
     protected void evaluate() throws IOException {
 
@@ -22,77 +32,134 @@ public class QryIopWindow extends QryIop {
             return;
         // one argument
         if (args.size() == 1) {
-            this.invertedList = ((QryIop) this.args.get(0)).invertedList;
+            this.invertedList = this.getArgInvertedList(0);
             return;
         }
 
-        // iterate each doc, greedy algorithms
-        while (true) {
-            //  init doc_id
-            int doc_id = Qry.INVALID_DOCID;
-
-            if (this.docIteratorHasMatchAll(null))
-                doc_id = this.args.get(0).docIteratorGetMatch();
-            // fail to find a match all
-            if (doc_id == Qry.INVALID_DOCID)
-                break;
+        int n = this.args.size();
+
+        // positions and tf of each argument in the current doc
+        int[][] argPositions = new int[n][];
+        int[] argTfs = new int[n];
+        // index and value of the current position of each argument
+        int[] next = new int[n];
+        int[] current = new int[n];
+        // a min-heap of the arguments, ordered by current position
+        int[] heap = new int[n];
+        // matching positions of the current doc, reused across docs
+        int[] positions = new int[16];
+
+        // iterate each doc that matches all arguments
+        while (this.docIteratorHasMatchAll(null)) {
+            int doc_id = this.args.get(0).docIteratorGetMatch();
+
+            for (int i = 0; i < n; i++) {
+                QryIop q_i = (QryIop) this.args.get(i);
+                argTfs[i] = q_i.docIteratorGetMatchTf();
+                argPositions[i] = q_i.docIteratorGetMatchPositions();
+                next[i] = 0;
+            }
 
-            // window records the last argument's position
-            ArrayList<Integer> positions = new ArrayList<Integer>();
+            // number of window matches in doc
+            int tf = 0;
+            // the rightmost current position
+            int rightPos = buildHeap(heap, current, argPositions, next);
 
+            // one pass:  the leftmost argument is at the top of the heap,
+            // and positions only move right, so the rightmost position
+            // is maintained incrementally
             while (true) {
-                boolean success = false;
-                int leftPos = Integer.MAX_VALUE;
-                int leftIdx = -1;
-                int rightPos = Integer.MIN_VALUE;
-                int cnt = 0;
-
-                // iterate each location
-                for (int i = 0; i < this.args.size(); i++) {
-                    if (!((QryIop) this.args.get(i)).locIteratorHasMatch())
-                        break;
-                    int position = ((QryIop) this.args.get(i)).locIteratorGetMatch();
-                    if (position < leftPos) {
-                        leftPos = position;
-                        leftIdx = i;
-                    }
-                    if (position > rightPos) {
-                        rightPos = position;
-                    }
-                    cnt++;
-                }
-
-                if (rightPos - leftPos < windowSize && rightPos > leftPos && cnt == this.args.size()) {
-                    success = true;
-                }
+                int leftIdx = heap[0];
+                int leftPos = current[leftIdx];
 
-                if (success) {
+                if (rightPos - leftPos < windowSize && rightPos > leftPos) {
                     // find a successful match
-                    positions.add(rightPos);
+                    if (tf == positions.length)
+                        positions = Arrays.copyOf(positions, 2 * tf);
+                    positions[tf++] = rightPos;
                     // move every loc pointer
-                    for (Qry q_i : this.args) {
-                        ((QryIop) q_i).locIteratorAdvance();
+                    boolean exhausted = false;
+                    for (int i = 0; i < n; i++) {
+                        if (++next[i] == argTfs[i])
+                            exhausted = true;
                     }
-                } else if (leftIdx != -1){
-                    // no successful match, move leftmost pointer
-                    ((QryIop) this.args.get(leftIdx)).locIteratorAdvance();
-                    if (!((QryIop) this.args.get(leftIdx)).locIteratorHasMatch())
+                    if (exhausted)
                         break;
+                    rightPos = buildHeap(heap, current, argPositions, next);
                 } else {
-                    // no leftmost pointer
-                    break;
+                    // no successful match, move leftmost pointer
+                    if (++next[leftIdx] == argTfs[leftIdx])
+                        break;
+                    current[leftIdx] = argPositions[leftIdx][next[leftIdx]];
+                    rightPos = Math.max(rightPos, current[leftIdx]);
+                    siftDown(heap, n, 0, current);
                 }
-
             }
 
-
             // move doc pointer
             for (Qry q_i : this.args)
                 q_i.docIteratorAdvancePast(doc_id);
             // has window match
-            if (positions.size() > 0)
-                this.invertedList.appendPosting(doc_id, positions);
+            if (tf > 0)
+                this.invertedList.appendPosting(doc_id, positions, tf);
         }
     }
 
+    /**
+     * Read the current position of each argument and arrange the
+     * arguments in a min-heap by position.
+     *
+     * @param heap         The heap of argument indexes.
+     * @param current      Receives the current position of each argument.
+     * @param argPositions The positions of each argument.
+     * @param next         The index of each argument's current position.
+     * @return The rightmost current position.
+     */
+    private static int buildHeap(int[] heap, int[] current, int[][] argPositions, int[] next) {
+        int n = heap.length;
+        int rightPos = Integer.MIN_VALUE;
+
+        for (int i = 0; i < n; i++) {
+            heap[i] = i;
+            current[i] = argPositions[i][next[i]];
+            rightPos = Math.max(rightPos, current[i]);
+        }
+
+        for (int i = n / 2 - 1; i >= 0; i--)
+            siftDown(heap, n, i, current);
+
+        return rightPos;
+    }
+
+    /**
+     * Restore the heap order below the k'th heap entry.  Arguments at
+     * the same position are ordered by index, so the leftmost argument
+     * is the first of them, as in a left-to-right scan.
+     */
+    private static void siftDown(int[] heap, int size, int k, int[] current) {
+        while (true) {
+            int least = k;
+            int left = 2 * k + 1;
+            int right = left + 1;
+
+            if ((left < size) && isBefore(heap[left], heap[least], current))
+                least = left;
+
+            if ((right < size) && isBefore(heap[right], heap[least], current))
+                least = right;
+
+            if (least == k)
+                break;
+
+            int tmp = heap[k];
+            heap[k] = heap[least];
+            heap[least] = tmp;
+            k = least;
+        }
+    }
+
+    private static boolean isBefore(int i, int j, int[] current) {
+        return (current[i] < current[j]) || ((current[i] == current[j]) && (i < j));
+    }
+
 }
@@ -3,6 +3,7 @@
  */
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * The root class of all query operators that use a retrieval model
@@ -15,21 +16,269 @@ import java.io.IOException;
  */
 public abstract class QrySop extends Qry {
 
+    /**
+     * The collector that receives the documents that this operator
+     * matches, if this operator is the root of the query.  Operators
+     * may use its threshold to skip documents that cannot be in the
+     * top k; it is null for other operators.
+     */
+    protected TopKCollector topK = null;
+
+    /**
+     * The scorer for the retrieval model that the operator was
+     * initialized with.
+     */
+    protected Scorer scorer = null;
+
+    /**
+     * The scorer for a parameter sweep, or null if the operator wasn't
+     * initialized for one.
+     */
+    protected SweepScorer sweepScorer = null;
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     * A scorer calculates the scores of one score operator for one
+     * retrieval model.  Each operator chooses its scorer when it is
+     * initialized, so the type of the retrieval model and of the
+     * arguments isn't tested again for each document that is scored.
+     * Scorers read the operator's document-independent values when
+     * they score, so an operator may compute those values after its
+     * scorer is created.
+     */
+    protected static abstract class Scorer {
+
+        /**
+         * The retrieval model, which determines what the arguments match.
+         */
+        protected final RetrievalModel r;
+
+        protected Scorer(RetrievalModel r) {
+            this.r = r;
+        }
+
+        /**
+         * Get a score for the document that the operator matched.
+         *
+         * @return The document score.
+         * @throws java.io.IOException Error accessing the Lucene index
+         */
+        abstract double getScore() throws IOException;
+
+        /**
+         * Get the score of a document that the operator doesn't match.
+         * Retrieval models that don't smooth scores give it 0.
+         *
+         * @param docid The internal document id.
+         * @return The default score.
+         * @throws java.io.IOException Error accessing the Lucene index
+         */
+        double getDefaultScore(int docid) throws IOException {
+            return 0.0;
+        }
+    }
+
+    /**
+     * The scorer for a retrieval model that the operator doesn't
+     * support.  Scoring a document is an error.
+     */
+    protected static class UnsupportedScorer extends Scorer {
+
+        private final String operatorName;
+
+        /**
+         * @param r            The retrieval model.
+         * @param operatorName The name of the operator, e.g., "AND".
+         */
+        protected UnsupportedScorer(RetrievalModel r, String operatorName) {
+            super(r);
+            this.operatorName = operatorName;
+        }
+
+        double getScore() {
+            throw new IllegalArgumentException
+                    (this.r.getClass().getName() + " doesn't support the " +
+                            this.operatorName + " operator.");
+        }
+    }
+
+    /**
+     * The scorer for the UnrankedBoolean retrieval model:  every
+     * document that matches has score 1.
+     */
+    protected class UnrankedBooleanScorer extends Scorer {
+
+        protected UnrankedBooleanScorer(RetrievalModel r) {
+            super(r);
+        }
+
+        double getScore() {
+            return QrySop.this.docIteratorHasMatchCache() ? 1.0 : 0.0;
+        }
+    }
+
+    /**
+     * A sweep scorer calculates the scores of one score operator for
+     * several settings of one retrieval model's parameters, e.g., BM25
+     * with several values of k_1 and b.  The settings are the same
+     * retrieval model, so they match the same documents; each document
+     * is matched once and scored for every setting.
+     */
+    protected static abstract class SweepScorer {
+
+        /**
+         * The first setting, which determines what the arguments match.
+         */
+        protected final RetrievalModel r;
+
+        /**
+         * The number of settings.
+         */
+        protected final int size;
+
+        protected SweepScorer(RetrievalModel[] models) {
+            this.r = models[0];
+            this.size = models.length;
+        }
+
+        /**
+         * Get the scores of the document that the operator matched.
+         *
+         * @param scores Set to the document's score for each setting.
+         * @throws java.io.IOException Error accessing the Lucene index
+         */
+        abstract void getScores(double[] scores) throws IOException;
+
+        /**
+         * Get the scores of a document that the operator doesn't match.
+         * Retrieval models that don't smooth scores give it 0.
+         *
+         * @param docid  The internal document id.
+         * @param scores Set to the default score for each setting.
+         * @throws java.io.IOException Error accessing the Lucene index
+         */
+        void getDefaultScores(int docid, double[] scores) throws IOException {
+            Arrays.fill(scores, 0.0);
+        }
+    }
+
+    //  --------------- Methods ---------------------------------------
+
     /**
      * Get a score for the document that docIteratorHasMatch matched.
      *
      * @param r The retrieval model that determines how scores are calculated.
+     *          It must be the model that the operator was initialized with.
      * @return The document score.
      * @throws java.io.IOException Error accessing the Lucene index
      */
-    public abstract double getScore(RetrievalModel r)
-            throws IOException;
+    public double getScore(RetrievalModel r) throws IOException {
+        return this.scorer.getScore();
+    }
+
+    /**
+     * Get the score of a document that the operator doesn't match.
+     *
+     * @param r      The retrieval model that determines how scores are calculated.
+     *               It must be the model that the operator was initialized with.
+     * @param doc_id The internal document id.
+     * @return The default score.
+     * @throws java.io.IOException Error accessing the Lucene index
+     */
+    public double getDefaultScore(RetrievalModel r, long doc_id) throws IOException {
+        return this.scorer.getDefaultScore((int) doc_id);
+    }
+
+    /**
+     * Create the operator's scorer for a retrieval model.  This is
+     * called when the operator is initialized, after its arguments are
+     * initialized.
+     *
+     * @param r The retrieval model.
+     * @return The scorer.
+     */
+    protected abstract Scorer getScorer(RetrievalModel r);
+
+    /**
+     * Create the operator's scorer for several settings of a retrieval
+     * model's parameters.  This is called after the operator and its
+     * arguments are initialized with the first setting.  By default,
+     * every setting gets the score of the first setting, which is right
+     * for operators whose scores don't depend on the parameters that
+     * are swept; operators whose scores do override this.
+     *
+     * @param models The retrieval model of each setting.
+     * @return The sweep scorer.
+     */
+    protected SweepScorer getSweepScorer(RetrievalModel[] models) {
+
+        final Scorer scorer = this.scorer;
+
+        return new SweepScorer(models) {
+            void getScores(double[] scores) throws IOException {
+                Arrays.fill(scores, scorer.getScore());
+            }
+
+            void getDefaultScores(int docid, double[] scores) throws IOException {
+                Arrays.fill(scores, scorer.getDefaultScore(docid));
+            }
+        };
+    }
+
+    /**
+     * Get the sweep scorers of the arguments, in order.  Arguments that
+     * aren't score operators have no scorer.
+     *
+     * @return The sweep scorers, with null for arguments that aren't score operators.
+     */
+    protected SweepScorer[] getArgSweepScorers() {
+
+        SweepScorer[] scorers = new SweepScorer[this.args.size()];
+
+        for (int i = 0; i < scorers.length; i++) {
+            if (this.args.get(i) instanceof QrySop)
+                scorers[i] = ((QrySop) this.args.get(i)).sweepScorer;
+        }
+
+        return scorers;
+    }
+
+    /**
+     * Get the scores of the document that docIteratorHasMatch matched,
+     * for each setting of a parameter sweep.
+     *
+     * @param scores Set to the document's score for each setting.
+     * @throws java.io.IOException Error accessing the Lucene index
+     */
+    public void getScores(double[] scores) throws IOException {
+        this.sweepScorer.getScores(scores);
+    }
+
+    /**
+     * Get the scorers of the arguments, in order.  Arguments that
+     * aren't score operators have no scorer.
+     *
+     * @return The scorers, with null for arguments that aren't score operators.
+     */
+    protected Scorer[] getArgScorers() {
+
+        Scorer[] scorers = new Scorer[this.args.size()];
+
+        for (int i = 0; i < scorers.length; i++) {
+            if (this.args.get(i) instanceof QrySop)
+                scorers[i] = ((QrySop) this.args.get(i)).scorer;
+        }
+
+        return scorers;
+    }
 
     /**
      * Initialize the query operator (and its arguments), including any
      * internal iterators.  If the query operator is of type QryIop, it
      * is fully evaluated, and the results are stored in an internal
      * inverted list that may be accessed via the internal iterator.
+     * The operator's scorer is created for the retrieval model.
      *
      * @param r A retrieval model that guides initialization
      * @throws java.io.IOException Error accessing the Lucene index.
@@ -38,8 +287,59 @@ public abstract class QrySop extends Qry {
         for (Qry q_i : this.args) {
             q_i.initialize(r);
         }
+
+        this.scorer = this.getScorer(r);
+    }
+
+    /**
+     * Initialize the query operator (and its arguments) to score
+     * documents for several settings of a retrieval model's parameters.
+     * The operator must already be initialized with the first setting,
+     * which determines what documents match.
+     *
+     * @param models The retrieval model of each setting.
+     * @throws java.io.IOException Error accessing the Lucene index.
+     */
+    public void initializeSweep(RetrievalModel[] models) throws IOException {
+        for (Qry q_i : this.args) {
+            if (q_i instanceof QrySop)
+                ((QrySop) q_i).initializeSweep(models);
+        }
+
+        this.sweepScorer = this.getSweepScorer(models);
+    }
+
+    /**
+     * Copy the query tree.  The copy has no collector, and no scorers
+     * until it is initialized.
+     *
+     * @return The copy.
+     */
+    @Override
+    public Qry copy() {
+        QrySop q = (QrySop) super.copy();
+
+        q.topK = null;
+        q.scorer = null;
+        q.sweepScorer = null;
+        return q;
     }
 
-    public abstract double getDefaultScore(RetrievalModel r, long doc_id)
-            throws IOException;
+    /**
+     * Set the collector that receives the documents that this operator
+     * matches.  This is called for the root of the query tree after it
+     * is initialized.  An operator that has one argument gives documents
+     * the argument's score, so the collector is passed down to a single
+     * score operator argument; otherwise the default query operator
+     * would hide the collector from the user's query.
+     *
+     * @param topK The collector.
+     */
+    public void setTopK(TopKCollector topK) {
+        this.topK = topK;
+
+        if ((this.args.size() == 1) && (this.args.get(0) instanceof QrySop)) {
+            ((QrySop) this.args.get(0)).setTopK(topK);
+        }
+    }
 }
@@ -4,10 +4,32 @@
  */
 
 import java.io.IOException;
+import java.util.Arrays;
 
 
 public class QrySopAnd extends QrySop {
 
+    /**
+     * Indri:  The exponent of each argument's score, 1/n.
+     */
+    private double indriExponent;
+    private boolean indriLogSpace;
+
+    /**
+     * Initialize the query operator (and its arguments), including any
+     * internal iterators.
+     *
+     * @param r A retrieval model that guides initialization
+     * @throws java.io.IOException Error accessing the Lucene index.
+     */
+    @Override
+    public void initialize(RetrievalModel r) throws IOException {
+        super.initialize(r);
+        this.indriExponent = 1.0 / this.args.size();
+        this.indriLogSpace =
+                (r instanceof RetrievalModelIndri) && ((RetrievalModelIndri) r).getLogSpace();
+    }
+
     /**
      * Indicates whether the query has a match.
      *
@@ -22,130 +44,203 @@ public class QrySopAnd extends QrySop {
     }
 
     /**
-     * Get a score for the document that docIteratorHasMatch matched.
+     * Create the operator's scorer for a retrieval model.
      *
-     * @param r The retrieval model that determines how scores are calculated.
-     * @return The document score.
-     * @throws java.io.IOException Error accessing the Lucene index
+     * @param r The retrieval model.
+     * @return The scorer.
      */
-    public double getScore(RetrievalModel r) throws IOException {
+    @Override
+    protected Scorer getScorer(RetrievalModel r) {
 
         if (r instanceof RetrievalModelUnrankedBoolean) {
-            return this.getScoreUnrankedBoolean(r);
+            return new UnrankedBooleanScorer(r);
         } else if (r instanceof RetrievalModelRankedBoolean) {
-            return this.getScoreRankedBoolean(r);
+            return new RankedBooleanScorer(r);
         } else if (r instanceof RetrievalModelIndri) {
-          return this.getScoreIndri(r);
+            return new IndriScorer(r);
         } else {
-            throw new IllegalArgumentException
-                    (r.getClass().getName() + " doesn't support the AND operator.");
+            return new UnsupportedScorer(r, "AND");
         }
     }
 
-    @Override
-    public double getDefaultScore(RetrievalModel r, long doc_id) throws IOException {
-        if (r instanceof RetrievalModelIndri) {
-            double default_score = 1.0;
-            for (Qry q : this.args) {
-                default_score *= Math.pow(((QrySop) q).getDefaultScore(r, doc_id), 1.0 / this.args.size());
+    /**
+     * The scorer for the RankedBoolean retrieval model:  the smallest
+     * argument score.
+     */
+    private class RankedBooleanScorer extends Scorer {
+
+        private final Scorer[] argScorers = getArgScorers();
+
+        private RankedBooleanScorer(RetrievalModel r) {
+            super(r);
+        }
+
+        double getScore() throws IOException {
+            if (!docIteratorHasMatchCache()) {
+                return 0.0;
+            } else {
+                double score = Integer.MAX_VALUE;
+                for (Scorer s : this.argScorers) {
+                    score = Math.min(score, s.getScore());
+                }
+                return score;
             }
-            return default_score;
         }
-        else {
-            return 0.0;
+    }
+
+    /**
+     * The scorer for the Indri retrieval model:  the geometric mean of
+     * the argument scores.  Arguments that don't match the document
+     * contribute their default scores.  In log space, it is the mean
+     * of the argument scores.
+     */
+    private class IndriScorer extends Scorer {
+
+        private final Scorer[] argScorers = getArgScorers();
+
+        private IndriScorer(RetrievalModel r) {
+            super(r);
+        }
+
+        double getScore() throws IOException {
+
+            if (!docIteratorHasMatchCache()) {
+                return 0.0;
+            } else if (indriLogSpace) {
+
+                double score = 0.0;
+                int doc_id = docIteratorGetMatch();
+
+                for (int i = 0; i < this.argScorers.length; i++) {
+                    Qry q = args.get(i);
+                    if (q.docIteratorHasMatch(this.r) && q.docIteratorGetMatch() == doc_id)
+                        score += this.argScorers[i].getScore() * indriExponent;
+                    else
+                        score += this.argScorers[i].getDefaultScore(doc_id) * indriExponent;
+                }
+                return score;
+            } else {
+
+                // sum of w_i * log (p_i), so exp is called once instead
+                // of pow for each argument
+                double score = 0.0;
+                int doc_id = docIteratorGetMatch();
+
+                for (int i = 0; i < this.argScorers.length; i++) {
+                    Qry q = args.get(i);
+                    // this document contain a query term
+                    if (q.docIteratorHasMatch(this.r) && q.docIteratorGetMatch() == doc_id)
+                        score += Math.log(this.argScorers[i].getScore()) * indriExponent;
+                    else
+                        score += Math.log(this.argScorers[i].getDefaultScore(doc_id)) * indriExponent;
+                }
+                return Math.exp(score);
+            }
+        }
+
+        @Override
+        double getDefaultScore(int doc_id) throws IOException {
+            if (indriLogSpace) {
+                double default_score = 0.0;
+                for (Scorer s : this.argScorers) {
+                    default_score += s.getDefaultScore(doc_id) * indriExponent;
+                }
+                return default_score;
+            }
+            double default_score = 0.0;
+            for (Scorer s : this.argScorers) {
+                default_score += Math.log(s.getDefaultScore(doc_id)) * indriExponent;
+            }
+            return Math.exp(default_score);
         }
     }
 
     /**
-     * getScore for the UnrankedBoolean retrieval model.
+     * Create the operator's scorer for several settings of a retrieval
+     * model's parameters.
      *
-     * @param r The retrieval model that determines how scores are calculated.
-     * @return The document score.
-     * @throws java.io.IOException Error accessing the Lucene index
+     * @param models The retrieval model of each setting.
+     * @return The sweep scorer.
      */
-    private double getScoreUnrankedBoolean(RetrievalModel r) throws IOException {
-        if (!this.docIteratorHasMatchCache()) {
-            return 0.0;
+    @Override
+    protected SweepScorer getSweepScorer(RetrievalModel[] models) {
+        if (models[0] instanceof RetrievalModelIndri) {
+            return new IndriSweepScorer(models);
         } else {
-            return 1.0;
+            return super.getSweepScorer(models);
         }
     }
 
     /**
-     * getScore for the RankedBoolean retrieval model.
-     *
-     * @param r The retrieval model that determines how scores are calculated.
-     * @return The document score.
-     * @throws java.io.IOException Error accessing the Lucene index
+     * The scorer for a sweep of the Indri retrieval model.  Each
+     * argument is matched once, and its scores for every setting are
+     * combined as IndriScorer combines them.
      */
-    private double getScoreRankedBoolean(RetrievalModel r) throws IOException {
-        if (!this.docIteratorHasMatchCache()) {
-            return 0.0;
-        } else {
-            double score = Integer.MAX_VALUE;
-            for (Qry q : this.args) {
-                score = Math.min(score, ((QrySop) q).getScore(r));
+    private class IndriSweepScorer extends SweepScorer {
+
+        private final SweepScorer[] argScorers = getArgSweepScorers();
+        private final double[] argScores;       // an argument's score for each setting
+
+        private IndriSweepScorer(RetrievalModel[] models) {
+            super(models);
+            this.argScores = new double[this.size];
+        }
+
+        void getScores(double[] scores) throws IOException {
+
+            Arrays.fill(scores, 0.0);
+
+            if (!docIteratorHasMatchCache())
+                return;
+
+            int doc_id = docIteratorGetMatch();
+
+            for (int i = 0; i < this.argScorers.length; i++) {
+                Qry q = args.get(i);
+                if (q.docIteratorHasMatch(this.r) && q.docIteratorGetMatch() == doc_id)
+                    this.argScorers[i].getScores(this.argScores);
+                else
+                    this.argScorers[i].getDefaultScores(doc_id, this.argScores);
+                this.add(scores);
             }
-            return score;
+
+            this.finish(scores);
         }
-    }
 
-    private double getScoreIndri(RetrievalModel r) throws IOException {
+        @Override
+        void getDefaultScores(int doc_id, double[] scores) throws IOException {
 
-        if (!this.docIteratorHasMatchCache()) {
-            return 0.0;
-        } else {
+            Arrays.fill(scores, 0.0);
 
-            double score = 1.0;
-            int doc_id = this.docIteratorGetMatch();
-
-            for (Qry q : this.args) {
-                // this document contain a query term
-                if (q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == doc_id) {
-                    // operand: QryIop
-                    if (q instanceof QryIop) {
-                        double lambda = RetrievalModelIndri.getLambda();
-                        double mu = RetrievalModelIndri.getMu();
-                        // term frequency
-                        int tf = ((QryIop) q).docIteratorGetMatchPosting().tf;
-                        // length(d)
-                        int doc_len = Idx.getFieldLength(((QryIop) q).getField(), doc_id);
-                        // term frequency in the entire collection
-                        int ctf = ((QryIop) q).invertedList.ctf;
-                        // total number of word occurrences in collection
-                        long sum_len = Idx.getSumOfFieldLengths(((QryIop) q).getField());
-                        // maximum likelihood estimate
-                        double p_MLE = ((double) ctf) / sum_len;
-                        double p = (1 - lambda) * (tf + mu * p_MLE) / (doc_len + mu) + mu * p_MLE;
-                        score *= Math.pow(p, 1.0 / this.args.size());
-                    }
-                    // operand QrySopScore
-                    else if (q instanceof QrySopScore) {
-                        double lambda = RetrievalModelIndri.getLambda();
-                        double mu = RetrievalModelIndri.getMu();
-                        // term frequency
-                        int tf = q.getArg(0).docIteratorGetMatchPosting().tf;
-                        // length(d)
-                        int doc_len = Idx.getFieldLength(q.getArg(0).getField(), doc_id);
-                        // term frequency in the entire collection
-                        int ctf = q.getArg(0).invertedList.ctf;
-                        // total doc len
-                        long sum_len = Idx.getSumOfFieldLengths(q.getArg(0).getField());
-                        // maximum likelihood estimate
-                        double p_MLE = ((double) ctf) / sum_len;
-                        double p = (1 - lambda) * (tf + mu * p_MLE) / (doc_len + mu) + lambda * p_MLE;
-                        score *= Math.pow(p, 1.0 / this.args.size());
-                    }
-                    // other QrySop
-                    else if (q instanceof QrySop) {
-                        score *= Math.pow(((QrySop) q).getScore(r), 1.0 / this.args.size());
-                    }
-
-                } else {
-                    score *= Math.pow(((QrySop) q).getDefaultScore(r, doc_id), 1.0 / this.args.size());
-                }
+            for (SweepScorer s : this.argScorers) {
+                s.getDefaultScores(doc_id, this.argScores);
+                this.add(scores);
+            }
+
+            this.finish(scores);
+        }
+
+        /**
+         * Add the argument's weighted log scores to the scores.
+         */
+        private void add(double[] scores) {
+            for (int m = 0; m < this.size; m++) {
+                if (indriLogSpace)
+                    scores[m] += this.argScores[m] * indriExponent;
+                else
+                    scores[m] += Math.log(this.argScores[m]) * indriExponent;
+            }
+        }
+
+        /**
+         * Convert the sums of log scores to probabilities, unless the
+         * model scores in log space.
+         */
+        private void finish(double[] scores) {
+            if (!indriLogSpace) {
+                for (int m = 0; m < this.size; m++)
+                    scores[m] = Math.exp(scores[m]);
             }
-            return score;
         }
     }
 }
@@ -3,12 +3,32 @@
  */
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * The OR operator for all retrieval models.
  */
 public class QrySopOr extends QrySop {
 
+    /**
+     * Indri:  True if scores are log probabilities.
+     */
+    private boolean indriLogSpace;
+
+    /**
+     * Initialize the query operator (and its arguments), including any
+     * internal iterators.
+     *
+     * @param r A retrieval model that guides initialization
+     * @throws java.io.IOException Error accessing the Lucene index.
+     */
+    @Override
+    public void initialize(RetrievalModel r) throws IOException {
+        super.initialize(r);
+        this.indriLogSpace =
+                (r instanceof RetrievalModelIndri) && ((RetrievalModelIndri) r).getLogSpace();
+    }
+
     /**
      * Indicates whether the query has a match.
      *
@@ -20,99 +40,163 @@ public class QrySopOr extends QrySop {
     }
 
     /**
-     * Get a score for the document that docIteratorHasMatch matched.
+     * Create the operator's scorer for a retrieval model.
      *
-     * @param r The retrieval model that determines how scores are calculated.
-     * @return The document score.
-     * @throws java.io.IOException Error accessing the Lucene index
+     * @param r The retrieval model.
+     * @return The scorer.
      */
-    public double getScore(RetrievalModel r) throws IOException {
+    @Override
+    protected Scorer getScorer(RetrievalModel r) {
 
         if (r instanceof RetrievalModelUnrankedBoolean) {
-            return this.getScoreUnrankedBoolean(r);
+            return new UnrankedBooleanScorer(r);
         } else if (r instanceof RetrievalModelRankedBoolean) {
-            return this.getScoreRankedBoolean(r);
+            return new RankedBooleanScorer(r);
         } else if (r instanceof RetrievalModelIndri) {
-            return this.getScoreIndri(r);
+            return new IndriScorer(r);
         } else {
-            throw new IllegalArgumentException
-                    (r.getClass().getName() + " doesn't support the OR operator.");
+            return new UnsupportedScorer(r, "OR");
         }
     }
 
-    @Override
-    public double getDefaultScore(RetrievalModel r, long doc_id) throws IOException {
-        return 0;
+    /**
+     * The scorer for the RankedBoolean retrieval model:  the largest
+     * score of the arguments that match the document.
+     */
+    private class RankedBooleanScorer extends Scorer {
+
+        private final Scorer[] argScorers = getArgScorers();
+
+        private RankedBooleanScorer(RetrievalModel r) {
+            super(r);
+        }
+
+        double getScore() throws IOException {
+            if (!docIteratorHasMatchCache()) {
+                return 0.0;
+            } else {
+                double score = 0.0;
+                int doc_id = docIteratorGetMatch();
+                for (int i = 0; i < this.argScorers.length; i++) {
+                    Qry q = args.get(i);
+                    // if matches the same term
+                    if (q.docIteratorHasMatch(this.r) && q.docIteratorGetMatch() == doc_id)
+                        score = Math.max(score, this.argScorers[i].getScore());
+                }
+                return score;
+            }
+        }
     }
 
     /**
-     * getScore for the UnrankedBoolean retrieval model.
-     *
-     * @param r The retrieval model that determines how scores are calculated.
-     * @return The document score.
-     * @throws java.io.IOException Error accessing the Lucene index
+     * The scorer for the Indri retrieval model:  the probability that at
+     * least one argument matches, 1 - prod (1 - score).  Arguments that
+     * don't match the document are ignored.  In log space, the product
+     * is accumulated as a sum of log1p(-p).
      */
-    private double getScoreUnrankedBoolean(RetrievalModel r) throws IOException {
-        if (!this.docIteratorHasMatchCache()) {
-            return 0.0;
-        } else {
-            return 1.0;
+    private class IndriScorer extends Scorer {
+
+        private final Scorer[] argScorers = getArgScorers();
+
+        private IndriScorer(RetrievalModel r) {
+            super(r);
+        }
+
+        double getScore() throws IOException {
+            if (!docIteratorHasMatchCache()) {
+                return 0.0;
+            } else if (indriLogSpace) {
+                double score = 0.0;
+                int doc_id = docIteratorGetMatch();
+                for (int i = 0; i < this.argScorers.length; i++) {
+                    Qry q = args.get(i);
+                    if (q.docIteratorHasMatch(this.r) && q.docIteratorGetMatch() == doc_id)
+                        score += Math.log1p(-Math.exp(this.argScorers[i].getScore()));
+                }
+                return Math.log(-Math.expm1(score));
+            } else {
+                double score = 1.0;
+                int doc_id = docIteratorGetMatch();
+                for (int i = 0; i < this.argScorers.length; i++) {
+                    Qry q = args.get(i);
+                    // this document contain a query term
+                    if (q.docIteratorHasMatch(this.r) && q.docIteratorGetMatch() == doc_id)
+                        score *= 1 - this.argScorers[i].getScore();
+                }
+                return 1 - score;
+            }
+        }
+
+        @Override
+        double getDefaultScore(int doc_id) {
+            // log(0) in log space
+            return indriLogSpace ? Double.NEGATIVE_INFINITY : 0;
         }
     }
 
     /**
-     * getScore for the RankedBoolean retrieval model.
+     * Create the operator's scorer for several settings of a retrieval
+     * model's parameters.
      *
-     * @param r The retrieval model that determines how scores are calculated.
-     * @return The document score.
-     * @throws java.io.IOException Error accessing the Lucene index
+     * @param models The retrieval model of each setting.
+     * @return The sweep scorer.
      */
-    private double getScoreRankedBoolean(RetrievalModel r) throws IOException {
-        if (!this.docIteratorHasMatchCache()) {
-            return 0.0;
+    @Override
+    protected SweepScorer getSweepScorer(RetrievalModel[] models) {
+        if (models[0] instanceof RetrievalModelIndri) {
+            return new IndriSweepScorer(models);
         } else {
-            double score = 0.0;
-            int doc_id = this.docIteratorGetMatch();
-            for (Qry q : this.args) {
-                // if matches the same term
-                if (q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == doc_id)
-                    score = Math.max(score, ((QrySop) q).getScore(r));
-            }
-            return score;
+            return super.getSweepScorer(models);
         }
     }
 
-    private double getScoreIndri(RetrievalModel r) throws IOException {
-        if (!this.docIteratorHasMatchCache()) {
-            return 0.0;
-        } else {
-            double score = 1.0;
-            int doc_id = this.docIteratorGetMatch();
-            for (Qry q : this.args) {
-                // this document contain a query term
-                if (q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == doc_id) {
-                    if (q instanceof QryIop) {
-                        double lambda = RetrievalModelIndri.getLambda();
-                        double mu = RetrievalModelIndri.getMu();
-                        // term frequency
-                        int tf = ((QryIop) q).docIteratorGetMatchPosting().tf;
-                        // length(d)
-                        int doc_len = Idx.getFieldLength(((QryIop) q).getField(), doc_id);
-                        // term frequency in the entire collection
-                        int ctf = ((QryIop) q).invertedList.ctf;
-                        // total number of word occurrences in collection
-                        long sum_len = Idx.getSumOfFieldLengths(((QryIop) q).getField());
-                        // maximum likelihood estimate
-                        double p_MLE = ((double) ctf) / sum_len;
-                        double p = (1 - lambda) * (tf + mu * p_MLE) / (doc_len + mu) + lambda * p_MLE;
-                        score *= 1 - p;
-                    } else if (q instanceof QrySop) {
-                        score *= 1 - ((QrySop) q).getScore(r);
+    /**
+     * The scorer for a sweep of the Indri retrieval model.  Each
+     * argument that matches the document is scored once, for every
+     * setting, and the scores are combined as IndriScorer combines them.
+     */
+    private class IndriSweepScorer extends SweepScorer {
+
+        private final SweepScorer[] argScorers = getArgSweepScorers();
+        private final double[] argScores;       // an argument's score for each setting
+
+        private IndriSweepScorer(RetrievalModel[] models) {
+            super(models);
+            this.argScores = new double[this.size];
+        }
+
+        void getScores(double[] scores) throws IOException {
+
+            if (!docIteratorHasMatchCache()) {
+                Arrays.fill(scores, 0.0);
+                return;
+            }
+
+            int doc_id = docIteratorGetMatch();
+
+            Arrays.fill(scores, indriLogSpace ? 0.0 : 1.0);
+
+            for (int i = 0; i < this.argScorers.length; i++) {
+                Qry q = args.get(i);
+                if (q.docIteratorHasMatch(this.r) && q.docIteratorGetMatch() == doc_id) {
+                    this.argScorers[i].getScores(this.argScores);
+                    for (int m = 0; m < this.size; m++) {
+                        if (indriLogSpace)
+                            scores[m] += Math.log1p(-Math.exp(this.argScores[m]));
+                        else
+                            scores[m] *= 1 - this.argScores[m];
                     }
                 }
             }
-            return 1 - score;
+
+            for (int m = 0; m < this.size; m++)
+                scores[m] = indriLogSpace ? Math.log(-Math.expm1(scores[m])) : 1 - scores[m];
         }
-    }
 
+        @Override
+        void getDefaultScores(int doc_id, double[] scores) {
+            // log(0) in log space
+            Arrays.fill(scores, indriLogSpace ? Double.NEGATIVE_INFINITY : 0);
+        }
+    }
 }
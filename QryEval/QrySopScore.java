@@ -14,6 +14,24 @@ public class QrySopScore extends QrySop {
      *  Some retrieval models have these, some don't.
      */
 
+    /**
+     * Indri:  The term's field, and p_MLE, the maximum likelihood
+     * estimate of the term in the collection.  The parts of the
+     * smoothed term probability that depend on mu and lambda are bound
+     * by the scorer of each setting of the parameters.
+     */
+    private int indriFieldId;
+    private double indriPMLE;
+    private boolean indriLogSpace;
+
+    /**
+     * Indri:  The lengths of the term's field, bound at initialization.
+     * indriLengths is the field's array of lengths if the store is
+     * dense, otherwise null.
+     */
+    private DocLengthStore indriLengthStore;
+    private int[] indriLengths;
+
     /**
      * Indicates whether the query has a match.
      *
@@ -25,85 +43,213 @@ public class QrySopScore extends QrySop {
     }
 
     /**
-     * Get a score for the document that docIteratorHasMatch matched.
+     * Create the operator's scorer for a retrieval model.
      *
-     * @param r The retrieval model that determines how scores are calculated.
-     * @return The document score.
-     * @throws java.io.IOException Error accessing the Lucene index
+     * @param r The retrieval model.
+     * @return The scorer.
      */
-    public double getScore(RetrievalModel r) throws IOException {
+    @Override
+    protected Scorer getScorer(RetrievalModel r) {
 
         if (r instanceof RetrievalModelUnrankedBoolean) {
-            return this.getScoreUnrankedBoolean(r);
+            return new UnrankedBooleanScorer(r);
         } else if (r instanceof  RetrievalModelRankedBoolean) {
-            return this.getScoreRankedBoolean(r);
+            return new RankedBooleanScorer(r);
+        } else if (r instanceof RetrievalModelIndri) {
+            return new IndriScorer(r);
         } else {
-            throw new IllegalArgumentException
-                    (r.getClass().getName() + " doesn't support the SCORE operator.");
+            return new UnsupportedScorer(r, "SCORE");
+        }
+    }
+
+    /**
+     * The scorer for the RankedBoolean retrieval model:  the term
+     * frequency.
+     */
+    private class RankedBooleanScorer extends Scorer {
+
+        private final QryIop q = getArg(0);
+
+        private RankedBooleanScorer(RetrievalModel r) {
+            super(r);
+        }
+
+        double getScore() {
+            if (!docIteratorHasMatchCache()) {
+                return 0.0;
+            } else {
+                return this.q.docIteratorGetMatchTf();
+            }
+        }
+    }
+
+    /**
+     * The scorer for the Indri retrieval model:  the term's probability
+     * in the document, smoothed with its collection probability, or its
+     * log if the model scores in log space.  The parts of the
+     * probability that don't depend on the document are bound when the
+     * scorer is created.
+     */
+    private class IndriScorer extends Scorer {
+
+        private final QryIop q = getArg(0);
+        private final double mu;
+        private final double oneMinusLambda;     // 1 - lambda
+        private final double muPMLE;             // mu * p_MLE
+        private final double lambdaPMLE;         // lambda * p_MLE
+        private final double defaultNumerator;   // (1 - lambda) * mu * p_MLE
+
+        private IndriScorer(RetrievalModel r) {
+            super(r);
+
+            double lambda = ((RetrievalModelIndri) r).getLambda();
+
+            this.mu = ((RetrievalModelIndri) r).getMu();
+            this.oneMinusLambda = 1 - lambda;
+            this.muPMLE = this.mu * indriPMLE;
+            this.lambdaPMLE = lambda * indriPMLE;
+            this.defaultNumerator = this.oneMinusLambda * this.muPMLE;
+        }
+
+        double getScore() throws IOException {
+            // term frequency
+            int tf = this.q.docIteratorGetMatchTf();
+            // length(d)
+            int doc_len = getIndriDocLength(docIteratorGetMatch());
+            return this.score(tf, doc_len);
+        }
+
+        @Override
+        double getDefaultScore(int doc_id) throws IOException {
+            // length(d)
+            return this.defaultScore(getIndriDocLength(doc_id));
+        }
+
+        /**
+         * The score of a document that has tf occurrences of the term.
+         */
+        double score(int tf, int doc_len) {
+            double p = this.oneMinusLambda * (tf + this.muPMLE) / (doc_len + this.mu) + this.lambdaPMLE;
+            return indriLogSpace ? Math.log(p) : p;
+        }
+
+        /**
+         * The score of a document that doesn't contain the term.
+         */
+        double defaultScore(int doc_len) {
+            double p = this.defaultNumerator / (doc_len + this.mu) + this.lambdaPMLE;
+            return indriLogSpace ? Math.log(p) : p;
         }
     }
 
     /**
-     * getScore for the Unranked retrieval model.
+     * Create the operator's scorer for several settings of a retrieval
+     * model's parameters.  Indri scores depend on mu and lambda.
      *
-     * @param r The retrieval model that determines how scores are calculated.
-     * @return The document score.
-     * @throws java.io.IOException Error accessing the Lucene index
+     * @param models The retrieval model of each setting.
+     * @return The sweep scorer.
      */
-    public double getScoreUnrankedBoolean(RetrievalModel r) throws IOException {
-        if (!this.docIteratorHasMatchCache()) {
-            return 0.0;
+    @Override
+    protected SweepScorer getSweepScorer(RetrievalModel[] models) {
+        if (models[0] instanceof RetrievalModelIndri) {
+            return new IndriSweepScorer(models);
         } else {
-            return 1.0;
+            return super.getSweepScorer(models);
         }
     }
 
-    public double getScoreRankedBoolean(RetrievalModel r) throws IOException {
-        if (!this.docIteratorHasMatchCache()) {
-            return 0.0;
-        } else {
-            double score;
-            Qry q = this.args.get(0);
-            score = ((QryIop) q).docIteratorGetMatchPosting().tf;
-            return score;
+    /**
+     * The scorer for a sweep of the Indri retrieval model.  The term
+     * frequency and document length are read once, and each setting's
+     * scorer computes its score from them.
+     */
+    private class IndriSweepScorer extends SweepScorer {
+
+        private final QryIop q = getArg(0);
+        private final IndriScorer[] settings;
+
+        private IndriSweepScorer(RetrievalModel[] models) {
+            super(models);
+
+            this.settings = new IndriScorer[models.length];
+
+            for (int m = 0; m < models.length; m++)
+                this.settings[m] = new IndriScorer(models[m]);
+        }
+
+        void getScores(double[] scores) throws IOException {
+            // term frequency
+            int tf = this.q.docIteratorGetMatchTf();
+            // length(d)
+            int doc_len = getIndriDocLength(docIteratorGetMatch());
+
+            for (int m = 0; m < this.size; m++)
+                scores[m] = this.settings[m].score(tf, doc_len);
+        }
+
+        @Override
+        void getDefaultScores(int doc_id, double[] scores) throws IOException {
+            // length(d)
+            int doc_len = getIndriDocLength(doc_id);
+
+            for (int m = 0; m < this.size; m++)
+                scores[m] = this.settings[m].defaultScore(doc_len);
         }
     }
 
+    /**
+     * Get the length of the term's field in a document.
+     *
+     * @param docid The internal docid in the lucene index.
+     * @return The length of the field.
+     * @throws java.io.IOException Error accessing the Lucene index.
+     */
+    private int getIndriDocLength(int docid) throws IOException {
+        if (this.indriLengths != null)
+            return this.indriLengths[docid];
+
+        return (int) this.indriLengthStore.getDocLength(this.indriFieldId, docid);
+    }
+
+    /**
+     * Get the maximum likelihood estimate of the term in the collection,
+     * which the Indri model uses to smooth term probabilities.
+     *
+     * @return p_MLE, or 0 if the operator wasn't initialized for Indri.
+     */
+    public double getIndriPMLE() {
+        return this.indriPMLE;
+    }
+
     /**
      * Initialize the query operator (and its arguments), including any
      * internal iterators.  If the query operator is of type QryIop, it
      * is fully evaluated, and the results are stored in an internal
      * inverted list that may be accessed via the internal iterator.
+     * Document-independent values of the retrieval model are computed.
      *
      * @param r A retrieval model that guides initialization
      * @throws java.io.IOException Error accessing the Lucene index.
      */
     public void initialize(RetrievalModel r) throws IOException {
 
-        Qry q = this.args.get(0);
+        QryIop q = this.getArg(0);
         q.initialize(r);
-    }
-
-    @Override
-    public double getDefaultScore(RetrievalModel r, long doc_id) throws IOException {
 
         if (r instanceof RetrievalModelIndri) {
-            QryIop q = (QryIop) this.args.get(0);
-            double lambda = RetrievalModelIndri.getLambda();
-            double mu = RetrievalModelIndri.getMu();
-            // length(d)
-            int doc_len = Idx.getFieldLength(q.getField(), (int)doc_id);
             // term frequency in the entire collection
-            int ctf = q.invertedList.ctf;
+            int ctf = q.getCtf();
             // total number of word occurrences in collection
             long sum_len = Idx.getSumOfFieldLengths(q.getField());
-            // maximum likelihood estimate
-            double p_MLE = ((double) ctf) / sum_len;
-            double p = (1 - lambda) * (mu * p_MLE) / (doc_len + mu) + lambda * p_MLE;
-            return p;
-        } else {
-            return 0.0;
+
+            this.indriFieldId = Idx.getFieldId(q.getField());
+            this.indriLengthStore = Idx.getDocLengthStore();
+            this.indriLengths = this.indriLengthStore.getDocLengths(this.indriFieldId);
+            this.indriPMLE = ((double) ctf) / sum_len;
+            this.indriLogSpace = ((RetrievalModelIndri) r).getLogSpace();
         }
+
+        this.scorer = this.getScorer(r);
     }
 
 }
@@ -3,87 +3,408 @@
  */
 
 import java.io.IOException;
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 
 public class QrySopSum extends QrySop {
 
+    /**
+     * Dynamic pruning:  The largest score that each argument can add to
+     * a document's score, or null if documents are not pruned.
+     */
+    private double[] upperBounds = null;
 
+    /**
+     * Block-Max WAND:  The bounds of each argument's blocks of postings,
+     * or null if blocks are not used.
+     */
+    private BlockMaxIndex.Cursor[] blockBounds = null;
+
+    /**
+     * BM25:  The arguments that are score operators, which are scored
+     * on their own.
+     */
+    private int[] sopArgs = null;
+
+    /**
+     * BM25:  The arguments that are inverted lists, grouped into slots.
+     * Arguments that are the same inverted list (e.g., a term that is
+     * repeated in the query) share a slot, which is scored once, with
+     * the number of times that it occurs in the query as its qtf.  The
+     * document-independent parts of each slot's score are computed at
+     * initialization.
+     */
+    private int[][] slotArgs = null;
+    private int[] slotFieldIds = null;
+    private int[][] slotLengths = null;         // the field's lengths, if they are dense
+    private DocLengthStore lengthStore = null;
+    private double[] slotAvgLengths = null;
+    private double[] slotQtfs = null;
+    private double[] slotRsjWeights = null;
+    private double[] slotUserWeights = null;
+
+    /**
+     * Initialize the query operator (and its arguments), including any
+     * internal iterators.  For BM25, the query term statistics are
+     * computed.  If the retrieval model uses dynamic pruning,
+     * the upper bound of each argument's score is computed, and for
+     * Block-Max WAND, the upper bound of each block of its postings.
+     *
+     * @param r A retrieval model that guides initialization
+     * @throws java.io.IOException Error accessing the Lucene index.
+     */
     @Override
-    public double getScore(RetrievalModel r) throws IOException {
+    public void initialize(RetrievalModel r) throws IOException {
+        super.initialize(r);
+
+        this.upperBounds = null;
+        this.blockBounds = null;
+
+        if (r instanceof RetrievalModelBM25)
+            this.initializeSlotsBM25((RetrievalModelBM25) r);
 
-        int doc_id = this.docIteratorGetMatch();
-        double sum = 0.0;
-        double k1 = RetrievalModelBM25.getK1();
-        double b = RetrievalModelBM25.getB();
-        double k3 = RetrievalModelBM25.getK3();
-        Hashtable<String, Integer> queryTable = new Hashtable<String, Integer>();
+        if ((r instanceof RetrievalModelBM25) && !r.getPruning().equals("none"))
+            this.upperBounds = this.getUpperBoundsBM25();
+
+        if ((this.upperBounds != null) && r.getPruning().equals("bmw"))
+            this.blockBounds = this.getBlockBoundsBM25((RetrievalModelBM25) r);
+    }
+
+    /**
+     * Group the arguments into slots, and compute the parts of each
+     * slot's BM25 score that don't depend on the document:  its field,
+     * the field's average length, the RSJ weight, and the user weight.
+     *
+     * @param r The retrieval model.
+     * @throws java.io.IOException Error accessing the Lucene index
+     */
+    private void initializeSlotsBM25(RetrievalModelBM25 r) throws IOException {
+
+        double k3 = r.getK3();
+        List<Integer> sops = new ArrayList<Integer>();
+        Map<String, List<Integer>> slots = new LinkedHashMap<String, List<Integer>>();
 
-        // query term stat
         for (int i = 0; i < this.args.size(); i++) {
-            int cnt = 0;
-            if (this.args.get(i) instanceof QryIop && queryTable.containsKey(this.args.get(i).toString())) {
-                cnt = (Integer) queryTable.get(this.args.get(i).toString());
+            Qry q = this.args.get(i);
+
+            if (q instanceof QrySop) {
+                sops.add(i);
+                continue;
             }
-            queryTable.put(this.args.get(i).toString(), cnt + 1);
+
+            List<Integer> slot = slots.get(q.toString());
+
+            if (slot == null) {
+                slot = new ArrayList<Integer>();
+                slots.put(q.toString(), slot);
+            }
+
+            slot.add(i);
         }
 
-        // Score list: calculate
-        for (Qry q : this.args) {
-            if (q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == doc_id && q instanceof QrySop)
-                sum += ((QrySop) q).getScore(r);
+        this.sopArgs = new int[sops.size()];
+
+        for (int i = 0; i < this.sopArgs.length; i++)
+            this.sopArgs[i] = sops.get(i);
+
+        this.slotArgs = new int[slots.size()][];
+        this.slotFieldIds = new int[slots.size()];
+        this.slotLengths = new int[slots.size()][];
+        this.lengthStore = Idx.getDocLengthStore();
+        this.slotAvgLengths = new double[slots.size()];
+        this.slotQtfs = new double[slots.size()];
+        this.slotRsjWeights = new double[slots.size()];
+        this.slotUserWeights = new double[slots.size()];
+
+        int s = 0;
+
+        for (List<Integer> slot : slots.values()) {
+            QryIop q = (QryIop) this.args.get(slot.get(0));
+            // query term frequency
+            double qtf = slot.size();
+            // document frequency
+            double df = q.getDf();
+
+            this.slotArgs[s] = new int[slot.size()];
+
+            for (int j = 0; j < slot.size(); j++)
+                this.slotArgs[s][j] = slot.get(j);
+
+            this.slotQtfs[s] = qtf;
+            this.slotFieldIds[s] = Idx.getFieldId(q.getField());
+            this.slotLengths[s] = this.lengthStore.getDocLengths(this.slotFieldIds[s]);
+            // average length: over the documents that have the field, not getNumDocs
+            this.slotAvgLengths[s] = Idx.getAvgFieldLength(q.getField());
+            // N = Idx.getNumDocs
+            this.slotRsjWeights[s] = Math.max(0, Math.log((Idx.getNumDocs() - df + 0.5) / (df + 0.5)));
+            this.slotUserWeights[s] = getUserWeight(k3, qtf);
+            s++;
         }
+    }
+
+    /**
+     * Get the length of a slot's field in a document.
+     *
+     * @param s     The slot.
+     * @param docid The internal docid in the lucene index.
+     * @return The length of the field.
+     * @throws java.io.IOException Error accessing the Lucene index.
+     */
+    private int getSlotDocLength(int s, int docid) throws IOException {
+        if (this.slotLengths[s] != null)
+            return this.slotLengths[s][docid];
+
+        return (int) this.lengthStore.getDocLength(this.slotFieldIds[s], docid);
+    }
+
+    /**
+     * Compute the BM25 user weight of a query term.
+     *
+     * @param k3  The k3 parameter of the retrieval model.
+     * @param qtf The number of times that the term occurs in the query.
+     * @return The user weight.
+     */
+    private static double getUserWeight(double k3, double qtf) {
+        return ((k3 + 1) * qtf) / (k3 + qtf);
+    }
+
+    /**
+     * Compute the largest BM25 score that each argument can add to a
+     * document's score.  The tf weight is less than 1, so a term can
+     * add at most its RSJ weight times its user weight.  A repeated term
+     * is scored once (with its qtf), so only its first occurrence gets
+     * a bound.  The bounds are inflated slightly so that rounding can't
+     * prune a document that ties the threshold.
+     *
+     * @return The upper bounds, or null if some argument can't be bounded.
+     */
+    private double[] getUpperBoundsBM25() {
+
+        // nested score operators have no bound
+        if (this.sopArgs.length > 0)
+            return null;
+
+        double[] bounds = new double[this.args.size()];
 
+        for (int s = 0; s < this.slotArgs.length; s++)
+            bounds[this.slotArgs[s][0]] = this.slotRsjWeights[s] * this.slotUserWeights[s] * (1 + 1e-9);
+
+        return bounds;
+    }
+
+    /**
+     * Compute the largest BM25 score that each argument can add to the
+     * score of a document in each block of its postings.  The tf weight
+     * increases with tf and decreases with document length, so the
+     * block's largest tf and smallest document length bound it.  An
+     * argument that isn't in the block-max index has one block whose
+     * bound is its global upper bound.
+     *
+     * @param r The retrieval model.
+     * @return The block bounds of each argument.
+     * @throws java.io.IOException Error accessing the Lucene index
+     */
+    private BlockMaxIndex.Cursor[] getBlockBoundsBM25(RetrievalModelBM25 r) throws IOException {
+
+        double k1 = r.getK1();
+        double b = r.getB();
+        BlockMaxIndex.Cursor[] cursors = new BlockMaxIndex.Cursor[this.args.size()];
+
+        for (int i = 0; i < this.args.size(); i++) {
+            Qry q = this.args.get(i);
+            BlockMaxIndex.Blocks blocks = null;
+
+            // the term read its blocks when it was initialized
+            if ((q instanceof QryIopTerm) && (this.upperBounds[i] > 0))
+                blocks = ((QryIopTerm) q).getBlocks();
+
+            if (blocks == null) {
+                cursors[i] = new BlockMaxIndex.Cursor(this.upperBounds[i]);
+                continue;
+            }
+
+            // the global bound is RSJ_weight * user_weight
+            String field = ((QryIopTerm) q).getField();
+            double avg_len = Idx.getAvgFieldLength(field);
+            double[] bounds = new double[blocks.size()];
+
+            for (int j = 0; j < bounds.length; j++) {
+                double tf = blocks.maxTfs[j];
+                double doc_len = blocks.minLengths[j];
+                double tf_weight = tf / (tf + k1 * (1 - b + b * (doc_len / avg_len)));
+                bounds[j] = this.upperBounds[i] * tf_weight;
+            }
+
+            cursors[i] = new BlockMaxIndex.Cursor(blocks.lastDocids, bounds);
+        }
+
+        return cursors;
+    }
+
+    /**
+     * Create the operator's scorer for a retrieval model.
+     *
+     * @param r The retrieval model.
+     * @return The scorer.
+     */
+    @Override
+    protected Scorer getScorer(RetrievalModel r) {
         if (r instanceof RetrievalModelBM25) {
+            return new BM25Scorer(r);
+        } else {
+            return new UnsupportedScorer(r, "SUM");
+        }
+    }
+
+    /**
+     * The scorer for the BM25 retrieval model:  the sum of the scores
+     * of the score operator arguments and of the term slots.
+     */
+    private class BM25Scorer extends Scorer {
+
+        private final Scorer[] argScorers = getArgScorers();
+        private final double k1;
+        private final double b;
+
+        private BM25Scorer(RetrievalModel r) {
+            super(r);
+            this.k1 = ((RetrievalModelBM25) r).getK1();
+            this.b = ((RetrievalModelBM25) r).getB();
+        }
+
+        double getScore() throws IOException {
+
+            int doc_id = docIteratorGetMatch();
+            double sum = 0.0;
+
+            // Score list: calculate
+            for (int i : sopArgs) {
+                Qry q = args.get(i);
+                if (q.docIteratorHasMatch(this.r) && q.docIteratorGetMatch() == doc_id)
+                    sum += this.argScorers[i].getScore();
+            }
 
-            // Inverted list: use BM25 formula to calculate sum
-            for (Qry q : this.args) {
-                // QrySop
-                if (q instanceof QrySop)
-                    continue;
-                // QryIop
-                double score;
-                if (q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == doc_id) {
-                    String field = ((QryIop) q).getField();
-                    // document frequency
-                    double df = ((QryIop) q).getDf();
-                    // term frequency
-                    double tf = ((QryIop) q).docIteratorGetMatchPosting().tf;
-                    // document length in specific field
-                    double doc_len = Idx.getFieldLength(field, doc_id);
-                    // query term frequency
-                    double qtf = queryTable.get(q.toString());
-                    if (qtf == 0)   // already calculated
-                        continue;
-                    else            // set as already calculated
-                        queryTable.put(q.toString(), 0);
-                    // average length: use Idx.getDocCount instead of getNumDocs
-                    double avg_len = ((double) Idx.getSumOfFieldLengths(field)) / Idx.getDocCount(field);
-                    // N = Idx.getNumDocs
-                    double RSJ_weight = Math.max(0, Math.log((Idx.getNumDocs() - df + 0.5) / (df + 0.5)));
-                    double tf_weight = tf / (tf + k1 * (1 - b + b * (doc_len / avg_len)));
-                    double user_weight = ((k3 + 1) * qtf) / (k3 + qtf);
-                    score = RSJ_weight * tf_weight * user_weight;
-                    sum += score;
+            // Inverted list: use BM25 formula to calculate sum.  A slot is
+            // scored by the first of its arguments that matches the document.
+            for (int s = 0; s < slotArgs.length; s++) {
+                for (int i : slotArgs[s]) {
+                    Qry q = args.get(i);
+                    if (q.docIteratorHasMatch(this.r) && q.docIteratorGetMatch() == doc_id) {
+                        // term frequency
+                        double tf = ((QryIop) q).docIteratorGetMatchTf();
+                        // document length in specific field
+                        double doc_len = getSlotDocLength(s, doc_id);
+                        double tf_weight = tf / (tf + this.k1 * (1 - this.b + this.b * (doc_len / slotAvgLengths[s])));
+                        sum += slotRsjWeights[s] * tf_weight * slotUserWeights[s];
+                        break;
+                    }
                 }
             }
 
+            return sum;
         }
+    }
 
-        else {
-            throw new IllegalArgumentException
-                    (r.getClass().getName() + " doesn't support the SUM operator.");
+    /**
+     * Create the operator's scorer for several settings of a retrieval
+     * model's parameters.
+     *
+     * @param models The retrieval model of each setting.
+     * @return The sweep scorer.
+     */
+    @Override
+    protected SweepScorer getSweepScorer(RetrievalModel[] models) {
+        if (models[0] instanceof RetrievalModelBM25) {
+            return new BM25SweepScorer(models);
+        } else {
+            return super.getSweepScorer(models);
         }
-        return sum;
     }
 
-    @Override
-    public double getDefaultScore(RetrievalModel r, long doc_id) throws IOException {
-        return 0;
+    /**
+     * The scorer for a sweep of the BM25 retrieval model.  The tf and
+     * document length of each slot are read once, and scored with the
+     * k1, b, and user weight of every setting.
+     */
+    private class BM25SweepScorer extends SweepScorer {
+
+        private final SweepScorer[] argScorers = getArgSweepScorers();
+        private final double[] argScores;       // an argument's score for each setting
+        private final double[] k1s;
+        private final double[] bs;
+        private final double[][] userWeights;   // indexed by setting and slot
+
+        private BM25SweepScorer(RetrievalModel[] models) {
+            super(models);
+            this.argScores = new double[this.size];
+            this.k1s = new double[this.size];
+            this.bs = new double[this.size];
+            this.userWeights = new double[this.size][slotArgs.length];
+
+            for (int m = 0; m < this.size; m++) {
+                RetrievalModelBM25 model = (RetrievalModelBM25) models[m];
+                this.k1s[m] = model.getK1();
+                this.bs[m] = model.getB();
+
+                for (int s = 0; s < slotArgs.length; s++)
+                    this.userWeights[m][s] = getUserWeight(model.getK3(), slotQtfs[s]);
+            }
+        }
+
+        void getScores(double[] scores) throws IOException {
+
+            int doc_id = docIteratorGetMatch();
+
+            Arrays.fill(scores, 0.0);
+
+            for (int i : sopArgs) {
+                Qry q = args.get(i);
+                if (q.docIteratorHasMatch(this.r) && q.docIteratorGetMatch() == doc_id) {
+                    this.argScorers[i].getScores(this.argScores);
+                    for (int m = 0; m < this.size; m++)
+                        scores[m] += this.argScores[m];
+                }
+            }
+
+            for (int s = 0; s < slotArgs.length; s++) {
+                for (int i : slotArgs[s]) {
+                    Qry q = args.get(i);
+                    if (q.docIteratorHasMatch(this.r) && q.docIteratorGetMatch() == doc_id) {
+                        double tf = ((QryIop) q).docIteratorGetMatchTf();
+                        double doc_len = getSlotDocLength(s, doc_id);
+                        for (int m = 0; m < this.size; m++) {
+                            double k1 = this.k1s[m];
+                            double b = this.bs[m];
+                            double tf_weight = tf / (tf + k1 * (1 - b + b * (doc_len / slotAvgLengths[s])));
+                            scores[m] += slotRsjWeights[s] * tf_weight * this.userWeights[m][s];
+                        }
+                        break;
+                    }
+                }
+            }
+        }
     }
 
+    /**
+     * Indicates whether the query has a match.  If the operator is the
+     * root of a query that uses dynamic pruning, documents that can't
+     * reach the top k are skipped.
+     *
+     * @param r The retrieval model that determines what is a match
+     * @return True if the query matches, otherwise false.
+     */
     @Override
     public boolean docIteratorHasMatch(RetrievalModel r) {
-        return this.docIteratorHasMatchMin(r);
+        if ((this.blockBounds != null) && (this.topK != null))
+            return this.docIteratorHasMatchBlockMaxWand(r, this.upperBounds, this.blockBounds,
+                    this.topK.getThreshold());
+        else if ((this.upperBounds != null) && (this.topK != null))
+            return this.docIteratorHasMatchWand(r, this.upperBounds, this.topK.getThreshold());
+        else
+            return this.docIteratorHasMatchMin(r);
     }
 }
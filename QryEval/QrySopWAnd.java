@@ -1,5 +1,6 @@
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Stack;
 
 /**
@@ -13,10 +14,56 @@ public class QrySopWAnd extends QrySop {
 
     double weightSum = 0.0;
 
+    /**
+     * Indri:  The exponent of each argument's score, its weight divided
+     * by the sum of the weights.
+     */
+    private double[] indriExponents;
+    private boolean indriLogSpace;
+
     public Stack<Double> getWeights() {
         return this.weights;
     }
 
+    /**
+     * Copy the query tree.  The copy has its own weights.
+     *
+     * @return The copy.
+     */
+    @Override
+    public Qry copy() {
+        QrySopWAnd q = (QrySopWAnd) super.copy();
+
+        q.weights = new Stack<Double>();
+        q.weights.addAll(this.weights);
+        q.weightsArr = new ArrayList<Double>(this.weightsArr);
+        return q;
+    }
+
+    /**
+     * Get a canonical string version of this query operator, which
+     * includes the weight of each argument.  The weights are on the
+     * stack until the operator is initialized.
+     *
+     * @return The canonical string version of this query operator.
+     */
+    @Override
+    public String getCanonicalString() {
+
+        ArrayList<Double> w = new ArrayList<Double>(this.weightsArr);
+        w.addAll(this.weights);
+
+        StringBuilder result = new StringBuilder(this.getClass().getSimpleName()).append('(');
+
+        for (int i = 0; i < this.args.size(); i++) {
+            if (i > 0)
+                result.append(' ');
+            result.append(w.get(i)).append(' ').append(this.args.get(i).getCanonicalString());
+        }
+
+        return result.append(')').toString();
+    }
+
     public void calculateWeightSum() {
         while (!weights.isEmpty()) {
             double tmp = weights.pop();
@@ -26,6 +73,27 @@ public class QrySopWAnd extends QrySop {
         }
     }
 
+    /**
+     * Initialize the query operator (and its arguments), including any
+     * internal iterators.
+     *
+     * @param r A retrieval model that guides initialization
+     * @throws java.io.IOException Error accessing the Lucene index.
+     */
+    @Override
+    public void initialize(RetrievalModel r) throws IOException {
+        super.initialize(r);
+        calculateWeightSum();
+
+        this.indriExponents = new double[this.args.size()];
+
+        for (int i = 0; i < this.args.size(); i++)
+            this.indriExponents[i] = this.weightsArr.get(i) / this.weightSum;
+
+        this.indriLogSpace =
+                (r instanceof RetrievalModelIndri) && ((RetrievalModelIndri) r).getLogSpace();
+    }
+
     /**
      * Indicates whether the query has a match.
      *
@@ -40,109 +108,176 @@ public class QrySopWAnd extends QrySop {
     }
 
     /**
-     * Get a score for the document that docIteratorHasMatch matched.
+     * Create the operator's scorer for a retrieval model.
      *
-     * @param r The retrieval model that determines how scores are calculated.
-     * @return The document score.
-     * @throws java.io.IOException Error accessing the Lucene index
+     * @param r The retrieval model.
+     * @return The scorer.
      */
-    public double getScore(RetrievalModel r) throws IOException {
+    @Override
+    protected Scorer getScorer(RetrievalModel r) {
         if (r instanceof RetrievalModelIndri) {
-            if (!weights.isEmpty())
-                calculateWeightSum();
-            return this.getScoreIndri(r);
+            return new IndriScorer(r);
         } else {
-            throw new IllegalArgumentException
-                    (r.getClass().getName() + " doesn't support the AND operator.");
+            return new UnsupportedScorer(r, "AND");
         }
     }
 
-    @Override
-    public double getDefaultScore(RetrievalModel r, long doc_id) throws IOException {
-        if (r instanceof RetrievalModelIndri) {
-            double default_score = 1.0;
-            //please do not forget to calculate sum
-            //or the weightsArr will be empty
-            if (!weights.isEmpty())
-                calculateWeightSum();
-            for (int i = 0; i < this.args.size(); i++) {
-                Qry q = this.args.get(i);
-                default_score *= Math.pow(((QrySop) q).getDefaultScore(r, doc_id),
-                        this.weightsArr.get(i) / this.weightSum);
+    /**
+     * The scorer for the Indri retrieval model:  the weighted geometric
+     * mean of the argument scores.  Arguments that don't match the
+     * document contribute their default scores.  In log space, it is
+     * the weighted mean of the argument scores.  The score is computed
+     * as the sum of w_i * log (p_i), so exp is called once instead of
+     * pow for each argument.  An argument whose weight is 0 contributes
+     * p_i^0 = 1 and isn't scored, so a term that isn't in the
+     * collection (log p_i = -inf) can't make the score NaN.
+     */
+    private class IndriScorer extends Scorer {
+
+        private final Scorer[] argScorers = getArgScorers();
+
+        private IndriScorer(RetrievalModel r) {
+            super(r);
+        }
+
+        double getScore() throws IOException {
+
+            if (!docIteratorHasMatchCache())
+                return 0.0;
+
+            double score = 0.0;
+            int doc_id = docIteratorGetMatch();
+
+            for (int i = 0; i < this.argScorers.length; i++) {
+
+                if (indriExponents[i] == 0)
+                    continue;
+
+                Qry q = args.get(i);
+                double p;
+
+                // this document contain a query term
+                if (q.docIteratorHasMatch(this.r) && q.docIteratorGetMatch() == doc_id)
+                    p = this.argScorers[i].getScore();
+                else
+                    p = this.argScorers[i].getDefaultScore(doc_id);
+
+                score += (indriLogSpace ? p : Math.log(p)) * indriExponents[i];
+            }
+
+            return indriLogSpace ? score : Math.exp(score);
+        }
+
+        @Override
+        double getDefaultScore(int doc_id) throws IOException {
+
+            double default_score = 0.0;
+
+            for (int i = 0; i < this.argScorers.length; i++) {
+
+                if (indriExponents[i] == 0)
+                    continue;
+
+                double p = this.argScorers[i].getDefaultScore(doc_id);
+                default_score += (indriLogSpace ? p : Math.log(p)) * indriExponents[i];
             }
-            return default_score;
+
+            return indriLogSpace ? default_score : Math.exp(default_score);
         }
-        else {
-            return 0.0;
+    }
+
+    /**
+     * Create the operator's scorer for several settings of a retrieval
+     * model's parameters.
+     *
+     * @param models The retrieval model of each setting.
+     * @return The sweep scorer.
+     */
+    @Override
+    protected SweepScorer getSweepScorer(RetrievalModel[] models) {
+        if (models[0] instanceof RetrievalModelIndri) {
+            return new IndriSweepScorer(models);
+        } else {
+            return super.getSweepScorer(models);
         }
     }
 
+    /**
+     * The scorer for a sweep of the Indri retrieval model.  Each
+     * argument is matched once, and its scores for every setting are
+     * combined as IndriScorer combines them.
+     */
+    private class IndriSweepScorer extends SweepScorer {
+
+        private final SweepScorer[] argScorers = getArgSweepScorers();
+        private final double[] argScores;       // an argument's score for each setting
 
+        private IndriSweepScorer(RetrievalModel[] models) {
+            super(models);
+            this.argScores = new double[this.size];
+        }
 
-    private double getScoreIndri(RetrievalModel r) throws IOException {
+        void getScores(double[] scores) throws IOException {
 
-        if (!this.docIteratorHasMatchCache()) {
-            return 0.0;
+            Arrays.fill(scores, 0.0);
 
-        } else {
+            if (!docIteratorHasMatchCache())
+                return;
 
-            double score = 1.0;
-            int doc_id = this.docIteratorGetMatch();
+            int doc_id = docIteratorGetMatch();
 
-            for (int i = 0; i < this.args.size(); i++) {
+            for (int i = 0; i < this.argScorers.length; i++) {
+                if (indriExponents[i] == 0)
+                    continue;
+                Qry q = args.get(i);
+                if (q.docIteratorHasMatch(this.r) && q.docIteratorGetMatch() == doc_id)
+                    this.argScorers[i].getScores(this.argScores);
+                else
+                    this.argScorers[i].getDefaultScores(doc_id, this.argScores);
+                this.add(i, scores);
+            }
 
-                Qry q = this.args.get(i);
+            this.finish(scores);
+        }
 
-                // this document contain a query term
-                if (q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == doc_id) {
-
-                    // operand: QryIop
-                    if (q instanceof QryIop) {
-                        double lambda = RetrievalModelIndri.getLambda();
-                        double mu = RetrievalModelIndri.getMu();
-                        // term frequency
-                        int tf = ((QryIop) q).docIteratorGetMatchPosting().tf;
-                        // length(d)
-                        int doc_len = Idx.getFieldLength(((QryIop) q).getField(), doc_id);
-                        // term frequency in the entire collection
-                        int ctf = ((QryIop) q).invertedList.ctf;
-                        // total number of word occurrences in collection
-                        long sum_len = Idx.getSumOfFieldLengths(((QryIop) q).getField());
-                        // maximum likelihood estimate
-                        double p_MLE = ((double) ctf) / sum_len;
-                        double p = (1 - lambda) * (tf + mu * p_MLE) / (doc_len + mu) + mu * p_MLE;
-                        score *= Math.pow(p, this.weightsArr.get(i) / this.weightSum);
-                    }
-
-                    // operand QrySopScore
-                    else if (q instanceof QrySopScore) {
-                        double lambda = RetrievalModelIndri.getLambda();
-                        double mu = RetrievalModelIndri.getMu();
-                        // term frequency
-                        int tf = q.getArg(0).docIteratorGetMatchPosting().tf;
-                        // length(d)
-                        int doc_len = Idx.getFieldLength(q.getArg(0).getField(), doc_id);
-                        // term frequency in the entire collection
-                        int ctf = q.getArg(0).invertedList.ctf;
-                        // total doc len
-                        long sum_len = Idx.getSumOfFieldLengths(q.getArg(0).getField());
-                        // maximum likelihood estimate
-                        double p_MLE = ((double) ctf) / sum_len;
-                        double p = (1 - lambda) * (tf + mu * p_MLE) / (doc_len + mu) + lambda * p_MLE;
-                        score *= Math.pow(p, this.weightsArr.get(i) / this.weightSum);
-                    }
-
-                    // other QrySop
-                    else if (q instanceof QrySop) {
-                        score *= Math.pow(((QrySop) q).getScore(r), this.weightsArr.get(i) / this.weightSum);
-                    }
-
-                } else {
-                    score *= Math.pow(((QrySop) q).getDefaultScore(r, doc_id), this.weightsArr.get(i) / this.weightSum);
-                }
+        @Override
+        void getDefaultScores(int doc_id, double[] scores) throws IOException {
+
+            Arrays.fill(scores, 0.0);
+
+            for (int i = 0; i < this.argScorers.length; i++) {
+                if (indriExponents[i] == 0)
+                    continue;
+                this.argScorers[i].getDefaultScores(doc_id, this.argScores);
+                this.add(i, scores);
+            }
+
+            this.finish(scores);
+        }
+
+        /**
+         * Add the i'th argument's weighted log scores to the scores.  An
+         * argument whose weight is 0 contributes p_i^0 = 1, so it isn't
+         * added.
+         */
+        private void add(int i, double[] scores) {
+            for (int m = 0; m < this.size; m++) {
+                if (indriLogSpace)
+                    scores[m] += this.argScores[m] * indriExponents[i];
+                else
+                    scores[m] += Math.log(this.argScores[m]) * indriExponents[i];
             }
-            return score;
         }
-    }
 
+        /**
+         * Convert the sums of log scores to probabilities, unless the
+         * model scores in log space.
+         */
+        private void finish(double[] scores) {
+            if (!indriLogSpace) {
+                for (int m = 0; m < this.size; m++)
+                    scores[m] = Math.exp(scores[m]);
+            }
+        }
+    }
 }
@@ -1,5 +1,6 @@
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Stack;
 
 /**
@@ -13,10 +14,74 @@ public class QrySopWSum extends QrySop {
 
     double weightSum = 0.0;
 
+    /**
+     * Indri:  The weight of each argument.
+     */
+    private double[] indriWeights;
+
+    /**
+     * Indri:  True if scores are log probabilities.  In log space, the
+     * argument scores of a document are collected in indriLogScores so
+     * that the weighted sum can be computed without underflow.
+     */
+    private boolean indriLogSpace;
+    private double[] indriLogScores;
+
+    /**
+     * Dynamic pruning:  The largest amount that each argument can add to
+     * a document's score above baseScore, or null if documents are not
+     * pruned.  A document that an argument doesn't match gets at most
+     * the argument's collection probability, so baseScore, the weighted
+     * sum of the collection probabilities, bounds the contribution of
+     * the arguments that don't match.
+     */
+    private double[] upperBounds = null;
+    private BlockMaxIndex.Cursor[] blockBounds = null;
+    private double baseScore = 0.0;
+
     public Stack<Double> getWeights() {
         return this.weights;
     }
 
+    /**
+     * Copy the query tree.  The copy has its own weights.
+     *
+     * @return The copy.
+     */
+    @Override
+    public Qry copy() {
+        QrySopWSum q = (QrySopWSum) super.copy();
+
+        q.weights = new Stack<Double>();
+        q.weights.addAll(this.weights);
+        q.weightsArr = new ArrayList<Double>(this.weightsArr);
+        return q;
+    }
+
+    /**
+     * Get a canonical string version of this query operator, which
+     * includes the weight of each argument.  The weights are on the
+     * stack until the operator is initialized.
+     *
+     * @return The canonical string version of this query operator.
+     */
+    @Override
+    public String getCanonicalString() {
+
+        ArrayList<Double> w = new ArrayList<Double>(this.weightsArr);
+        w.addAll(this.weights);
+
+        StringBuilder result = new StringBuilder(this.getClass().getSimpleName()).append('(');
+
+        for (int i = 0; i < this.args.size(); i++) {
+            if (i > 0)
+                result.append(' ');
+            result.append(w.get(i)).append(' ').append(this.args.get(i).getCanonicalString());
+        }
+
+        return result.append(')').toString();
+    }
+
     public void calculateWeightSum() {
         while (!weights.isEmpty()) {
             double tmp = weights.pop();
@@ -27,119 +92,318 @@ public class QrySopWSum extends QrySop {
     }
 
     /**
-     * Indicates whether the query has a match.
+     * Initialize the query operator (and its arguments), including any
+     * internal iterators.  If the retrieval model uses dynamic pruning,
+     * the score bounds of the arguments are computed.
+     *
+     * @param r A retrieval model that guides initialization
+     * @throws java.io.IOException Error accessing the Lucene index.
+     */
+    @Override
+    public void initialize(RetrievalModel r) throws IOException {
+        super.initialize(r);
+        calculateWeightSum();
+
+        this.indriWeights = new double[this.args.size()];
+
+        for (int i = 0; i < this.args.size(); i++)
+            this.indriWeights[i] = this.weightsArr.get(i);
+
+        this.indriLogSpace =
+                (r instanceof RetrievalModelIndri) && ((RetrievalModelIndri) r).getLogSpace();
+        this.indriLogScores = new double[this.args.size()];
+
+        this.upperBounds = null;
+        this.blockBounds = null;
+
+        if ((r instanceof RetrievalModelIndri) && !r.getPruning().equals("none"))
+            this.initializeBoundsIndri((RetrievalModelIndri) r, r.getPruning().equals("bmw"));
+    }
+
+    /**
+     * Compute the Indri score bounds of the arguments.  A matching
+     * document's term score increases with tf and decreases with
+     * document length, so the largest tf and smallest document length
+     * of a block of postings bound the scores in the block.  Without a
+     * block-max index, tf can't exceed the document length, so a term
+     * score is at most (1-lambda) + lambda * p_MLE.  Only arguments
+     * that are SCORE operators can be bounded.
+     *
+     * @param r         The retrieval model.
+     * @param useBlocks True to compute block bounds for Block-Max WAND.
+     * @throws java.io.IOException Error accessing the Lucene index
+     */
+    private void initializeBoundsIndri(RetrievalModelIndri r, boolean useBlocks) throws IOException {
+
+        double lambda = r.getLambda();
+        double mu = r.getMu();
+        double[] bounds = new double[this.args.size()];
+        BlockMaxIndex.Cursor[] cursors = new BlockMaxIndex.Cursor[this.args.size()];
+        double base = 0.0;
+
+        for (Qry q : this.args) {
+            // nested score operators have no bound
+            if (!(q instanceof QrySopScore))
+                return;
+        }
+
+        for (int i = 0; i < this.args.size(); i++) {
+            QryIop q = this.args.get(i).getArg(0);
+            double weight = this.indriWeights[i] / this.weightSum;
+            // maximum likelihood estimate
+            double p_MLE = ((QrySopScore) this.args.get(i)).getIndriPMLE();
+            BlockMaxIndex.Blocks blocks = null;
+
+            // the term read its blocks when it was initialized
+            if (q instanceof QryIopTerm)
+                blocks = ((QryIopTerm) q).getBlocks();
+
+            base += weight * p_MLE;
+
+            if (blocks == null) {
+                bounds[i] = weight * (1 - lambda) * (1 - p_MLE);
+                cursors[i] = new BlockMaxIndex.Cursor(bounds[i]);
+                continue;
+            }
+
+            double[] blockBounds = new double[blocks.size()];
+
+            for (int j = 0; j < blockBounds.length; j++) {
+                double p = (1 - lambda) * (blocks.maxTfs[j] + mu * p_MLE) / (blocks.minLengths[j] + mu) + lambda * p_MLE;
+                blockBounds[j] = weight * Math.max(0, p - p_MLE);
+                bounds[i] = Math.max(bounds[i], blockBounds[j]);
+            }
+
+            cursors[i] = new BlockMaxIndex.Cursor(blocks.lastDocids, blockBounds);
+        }
+
+        this.baseScore = base;
+        this.upperBounds = bounds;
+
+        if (useBlocks)
+            this.blockBounds = cursors;
+    }
+
+    /**
+     * Indicates whether the query has a match.  If the operator is the
+     * root of a query that uses dynamic pruning, documents that can't
+     * reach the top k are skipped.  The threshold is lowered slightly
+     * so that rounding can't prune a document that ties it.
      *
      * @param r The retrieval model that determines what is a match
      * @return True if the query matches, otherwise false.
      */
     public boolean docIteratorHasMatch(RetrievalModel r) {
-        if (r instanceof RetrievalModelIndri)
+        if (!(r instanceof RetrievalModelIndri))
+            return this.docIteratorHasMatchAll(r);
+
+        if ((this.upperBounds == null) || (this.topK == null))
             return this.docIteratorHasMatchMin(r);
+
+        // the bounds are probabilities
+        double threshold = this.topK.getThreshold();
+
+        if (this.indriLogSpace)
+            threshold = Math.exp(threshold);
+
+        threshold = threshold * (1 - 1e-9) - this.baseScore;
+
+        if (this.blockBounds != null)
+            return this.docIteratorHasMatchBlockMaxWand(r, this.upperBounds, this.blockBounds, threshold);
         else
-            return this.docIteratorHasMatchAll(r);
+            return this.docIteratorHasMatchWand(r, this.upperBounds, threshold);
     }
 
     /**
-     * Get a score for the document that docIteratorHasMatch matched.
+     * Create the operator's scorer for a retrieval model.
      *
-     * @param r The retrieval model that determines how scores are calculated.
-     * @return The document score.
-     * @throws java.io.IOException Error accessing the Lucene index
+     * @param r The retrieval model.
+     * @return The scorer.
      */
-    public double getScore(RetrievalModel r) throws IOException {
-
+    @Override
+    protected Scorer getScorer(RetrievalModel r) {
         if (r instanceof RetrievalModelIndri) {
-            calculateWeightSum();
-            return this.getScoreIndri(r);
+            return new IndriScorer(r);
         } else {
-            throw new IllegalArgumentException
-                    (r.getClass().getName() + " doesn't support the AND operator.");
+            return new UnsupportedScorer(r, "AND");
         }
     }
 
-    @Override
-    public double getDefaultScore(RetrievalModel r, long doc_id) throws IOException {
-        if (r instanceof RetrievalModelIndri) {
-            //please do not forget to calculate sum
-            //or the weightsArr will be empty
-            calculateWeightSum();
+    /**
+     * The scorer for the Indri retrieval model:  the weighted mean of the
+     * argument scores.  Arguments that don't match the document
+     * contribute their default scores.  In log space, it is the log of
+     * the weighted mean of the exponentiated argument scores.
+     */
+    private class IndriScorer extends Scorer {
+
+        private final Scorer[] argScorers = getArgScorers();
+
+        private IndriScorer(RetrievalModel r) {
+            super(r);
+        }
+
+        double getScore() throws IOException {
+
+            if (!docIteratorHasMatchCache()) {
+                return 0.0;
+
+            } else if (indriLogSpace) {
+
+                int doc_id = docIteratorGetMatch();
+
+                for (int i = 0; i < this.argScorers.length; i++) {
+
+                    Qry q = args.get(i);
+
+                    if (q.docIteratorHasMatch(this.r) && q.docIteratorGetMatch() == doc_id)
+                        indriLogScores[i] = this.argScorers[i].getScore();
+                    else
+                        indriLogScores[i] = this.argScorers[i].getDefaultScore(doc_id);
+                }
+                return logWeightedSum(indriLogScores);
+
+            } else {
+
+                double score = 0.0;
+                int doc_id = docIteratorGetMatch();
+
+                for (int i = 0; i < this.argScorers.length; i++) {
+
+                    Qry q = args.get(i);
+
+                    // this document contain a query term
+                    if (q.docIteratorHasMatch(this.r) && q.docIteratorGetMatch() == doc_id)
+                        score += this.argScorers[i].getScore() * indriWeights[i] / weightSum;
+                    else
+                        score += this.argScorers[i].getDefaultScore(doc_id) * indriWeights[i] / weightSum;
+                }
+                return score;
+            }
+        }
+
+        @Override
+        double getDefaultScore(int doc_id) throws IOException {
+            if (indriLogSpace) {
+                for (int i = 0; i < this.argScorers.length; i++) {
+                    indriLogScores[i] = this.argScorers[i].getDefaultScore(doc_id);
+                }
+                return logWeightedSum(indriLogScores);
+            }
             double default_score = 0.0;
-            for (int i = 0; i < this.args.size(); i++) {
-                Qry q = this.args.get(i);
-                default_score += ((QrySop) q).getDefaultScore(r, doc_id) * this.weightsArr.get(i) / this.weightSum;
+            for (int i = 0; i < this.argScorers.length; i++) {
+                default_score += this.argScorers[i].getDefaultScore(doc_id) * indriWeights[i] / weightSum;
             }
             return default_score;
         }
-        else {
-            return 0.0;
+    }
+
+    /**
+     * Create the operator's scorer for several settings of a retrieval
+     * model's parameters.
+     *
+     * @param models The retrieval model of each setting.
+     * @return The sweep scorer.
+     */
+    @Override
+    protected SweepScorer getSweepScorer(RetrievalModel[] models) {
+        if (models[0] instanceof RetrievalModelIndri) {
+            return new IndriSweepScorer(models);
+        } else {
+            return super.getSweepScorer(models);
         }
     }
 
+    /**
+     * The scorer for a sweep of the Indri retrieval model.  Each
+     * argument is matched once, and its scores for every setting are
+     * combined as IndriScorer combines them.  In log space, the argument
+     * scores of each setting are collected so that the weighted sum can
+     * be computed without underflow.
+     */
+    private class IndriSweepScorer extends SweepScorer {
+
+        private final SweepScorer[] argScorers = getArgSweepScorers();
+        private final double[][] argScores;     // indexed by argument and setting
+        private final double[] logScores;       // one setting's argument scores
+
+        private IndriSweepScorer(RetrievalModel[] models) {
+            super(models);
+            this.argScores = new double[this.argScorers.length][this.size];
+            this.logScores = new double[this.argScorers.length];
+        }
 
+        void getScores(double[] scores) throws IOException {
 
-    private double getScoreIndri(RetrievalModel r) throws IOException {
+            if (!docIteratorHasMatchCache()) {
+                Arrays.fill(scores, 0.0);
+                return;
+            }
 
-        if (!this.docIteratorHasMatchCache()) {
-            return 0.0;
+            int doc_id = docIteratorGetMatch();
 
-        } else {
+            for (int i = 0; i < this.argScorers.length; i++) {
+                Qry q = args.get(i);
+                if (q.docIteratorHasMatch(this.r) && q.docIteratorGetMatch() == doc_id)
+                    this.argScorers[i].getScores(this.argScores[i]);
+                else
+                    this.argScorers[i].getDefaultScores(doc_id, this.argScores[i]);
+            }
 
-            double score = 0.0;
-            int doc_id = this.docIteratorGetMatch();
-
-            for (int i = 0; i < this.args.size(); i++) {
-
-                Qry q = this.args.get(i);
-
-                // this document contain a query term
-                if (q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == doc_id) {
-
-                    // operand: QryIop
-                    if (q instanceof QryIop) {
-                        double lambda = RetrievalModelIndri.getLambda();
-                        double mu = RetrievalModelIndri.getMu();
-                        // term frequency
-                        int tf = ((QryIop) q).docIteratorGetMatchPosting().tf;
-                        // length(d)
-                        int doc_len = Idx.getFieldLength(((QryIop) q).getField(), doc_id);
-                        // term frequency in the entire collection
-                        int ctf = ((QryIop) q).invertedList.ctf;
-                        // total number of word occurrences in collection
-                        long sum_len = Idx.getSumOfFieldLengths(((QryIop) q).getField());
-                        // maximum likelihood estimate
-                        double p_MLE = ((double) ctf) / sum_len;
-                        double p = (1 - lambda) * (tf + mu * p_MLE) / (doc_len + mu) + mu * p_MLE;
-                        score += p * this.weightsArr.get(i) / this.weightSum;
-                    }
-
-                    // operand QrySopScore
-                    else if (q instanceof QrySopScore) {
-                        double lambda = RetrievalModelIndri.getLambda();
-                        double mu = RetrievalModelIndri.getMu();
-                        // term frequency
-                        int tf = q.getArg(0).docIteratorGetMatchPosting().tf;
-                        // length(d)
-                        int doc_len = Idx.getFieldLength(q.getArg(0).getField(), doc_id);
-                        // term frequency in the entire collection
-                        int ctf = q.getArg(0).invertedList.ctf;
-                        // total doc len
-                        long sum_len = Idx.getSumOfFieldLengths(q.getArg(0).getField());
-                        // maximum likelihood estimate
-                        double p_MLE = ((double) ctf) / sum_len;
-                        double p = (1 - lambda) * (tf + mu * p_MLE) / (doc_len + mu) + lambda * p_MLE;
-                        score += p * this.weightsArr.get(i) / this.weightSum;
-                    }
-
-                    // other QrySop
-                    else if (q instanceof QrySop) {
-                        score += ((QrySop) q).getScore(r) * this.weightsArr.get(i) / this.weightSum;
-                    }
+            this.combine(scores);
+        }
 
+        @Override
+        void getDefaultScores(int doc_id, double[] scores) throws IOException {
+
+            for (int i = 0; i < this.argScorers.length; i++)
+                this.argScorers[i].getDefaultScores(doc_id, this.argScores[i]);
+
+            this.combine(scores);
+        }
+
+        /**
+         * Compute the weighted mean of the argument scores for each setting.
+         */
+        private void combine(double[] scores) {
+            for (int m = 0; m < this.size; m++) {
+                if (indriLogSpace) {
+                    for (int i = 0; i < this.argScorers.length; i++)
+                        this.logScores[i] = this.argScores[i][m];
+                    scores[m] = logWeightedSum(this.logScores);
                 } else {
-                    score += ((QrySop) q).getDefaultScore(r, doc_id) * this.weightsArr.get(i) / this.weightSum;
+                    double score = 0.0;
+                    for (int i = 0; i < this.argScorers.length; i++)
+                        score += this.argScores[i][m] * indriWeights[i] / weightSum;
+                    scores[m] = score;
                 }
             }
-            return score;
         }
     }
+
+    /**
+     * Compute log (sum_i w_i exp (logScores[i]) / sum_i w_i).  The
+     * largest log score is factored out so that exp can't underflow
+     * for every argument.
+     *
+     * @param logScores The log score of each argument.
+     * @return The log of the weighted mean.
+     */
+    private double logWeightedSum(double[] logScores) {
+
+        double max = Double.NEGATIVE_INFINITY;
+
+        for (int i = 0; i < this.args.size(); i++)
+            max = Math.max(max, logScores[i]);
+
+        if (max == Double.NEGATIVE_INFINITY)
+            return max;
+
+        double sum = 0.0;
+
+        for (int i = 0; i < this.args.size(); i++)
+            sum += Math.exp(logScores[i] - max) * this.indriWeights[i];
+
+        return max + Math.log(sum / this.weightSum);
+    }
 }
@@ -0,0 +1,155 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Pseudo relevance feedback for the Indri retrieval model.  The
+ * expansion terms are the terms of the top-ranked documents that have
+ * the largest scores
+ * <pre>
+ *    score(t) = sum_d p(t|d) * score(d) * log (length(C) / ctf(t))
+ * </pre>
+ * where p(t|d) = (tf(t,d) + mu * p_MLE(t|C)) / (length(d) + mu).
+ * Because p(t|d) is smoothed, a term gets a score from every feedback
+ * document, including those that don't contain it.  The sum is split
+ * into a part from the term frequencies, which is accumulated as each
+ * document's term vector is read, and a part from smoothing,
+ * <pre>
+ *    mu * p_MLE(t|C) * sum_d score(d) / (length(d) + mu)
+ * </pre>
+ * which is added in closed form, so each term vector is read once and
+ * only the terms in it are visited.
+ * <p>
+ * Terms are given integer ids as they are found, and their statistics
+ * are kept in arrays indexed by id.  Terms that have the same score are
+ * chosen in alphabetical order, so the expansion doesn't depend on the
+ * order of a hash table.
+ * </p>
+ */
+public class QueryExpansion {
+
+    //  --------------- Constants and variables ---------------------
+
+    private static final String FIELD = "body";
+
+    private final int fbDocs;
+    private final int fbTerms;
+    private final int fbMu;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * @param fbDocs  The number of documents to use for query expansion.
+     * @param fbTerms The number of terms that are added to the query.
+     * @param fbMu    The amount of smoothing used to calculate p(t|d).
+     * @throws IllegalArgumentException A parameter is negative.
+     */
+    public QueryExpansion(int fbDocs, int fbTerms, int fbMu) {
+
+        if ((fbDocs < 0) || (fbTerms < 0) || (fbMu < 0)) {
+            throw new IllegalArgumentException("fbDocs, fbTerms, and fbMu can't be negative.");
+        }
+
+        this.fbDocs = fbDocs;
+        this.fbTerms = fbTerms;
+        this.fbMu = fbMu;
+    }
+
+    /**
+     * Get the expansion query for an initial ranking:  a #WAND of the
+     * expansion terms, in order from the largest score to the smallest,
+     * weighted by their scores rounded to 4 decimal places.
+     *
+     * @param r The initial ranking, sorted by score.
+     * @return The expansion query.
+     * @throws java.io.IOException Error accessing the Lucene index.
+     */
+    public String getExpansionQuery(ScoreList r) throws IOException {
+
+        int n = Math.min(this.fbDocs, r.size());
+        // length(C)
+        long sum_len = Idx.getSumOfFieldLengths(FIELD);
+
+        final List<String> terms = new ArrayList<String>();
+        Map<String, Integer> termIds = new HashMap<String, Integer>();
+        long[] ctfs = new long[64];
+        double[] tfScores = new double[64];     // sum_d tf(t,d) * score(d) / (length(d) + mu)
+        double smoothing = 0.0;                 // sum_d score(d) / (length(d) + mu)
+
+        for (int i = 0; i < n; i++) {
+            TermVector vector = new TermVector(r.getDocid(i), FIELD);
+            // score(d) / (length(d) + mu)
+            double docWeight = r.getDocidScore(i) / (vector.positionsLength() + this.fbMu);
+
+            smoothing += docWeight;
+
+            // stem 0 marks stopwords
+            for (int j = 1; j < vector.stemsLength(); j++) {
+                String term = vector.stemString(j);
+                Integer id = termIds.get(term);
+
+                if (id == null) {
+                    id = terms.size();
+                    termIds.put(term, id);
+                    terms.add(term);
+
+                    if (id == ctfs.length) {
+                        ctfs = Arrays.copyOf(ctfs, 2 * id);
+                        tfScores = Arrays.copyOf(tfScores, 2 * id);
+                    }
+
+                    ctfs[id] = vector.totalStemFreq(j);
+                }
+
+                tfScores[id] += vector.stemFreq(j) * docWeight;
+            }
+        }
+
+        //  Keep the fbTerms terms that have the largest scores.  The
+        //  heap's head is the worst term that is kept.
+
+        final double[] scores = new double[terms.size()];
+        PriorityQueue<Integer> top = new PriorityQueue<Integer>(this.fbTerms + 1,
+                new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        int c = Double.compare(scores[a], scores[b]);
+                        return (c != 0) ? c : terms.get(b).compareTo(terms.get(a));
+                    }
+                });
+
+        for (int id = 0; id < scores.length; id++) {
+            String term = terms.get(id);
+
+            // ignore "app.com" "app,com"
+            if (term.contains(".") || term.contains(","))
+                continue;
+
+            // p_MLE(t|C)
+            double p_MLE = ((double) ctfs[id]) / sum_len;
+            scores[id] = (tfScores[id] + this.fbMu * p_MLE * smoothing) *
+                    Math.log(((double) sum_len) / ctfs[id]);
+
+            top.add(id);
+
+            if (top.size() > this.fbTerms)
+                top.poll();
+        }
+
+        //  The worst term comes out of the heap first, so each term is
+        //  put in front of the terms that were already written.
+
+        String expansion = "";
+
+        while (!top.isEmpty()) {
+            int id = top.poll();
+            double weight = Math.round(scores[id] * 10000.0) / 10000.0;
+            expansion = String.valueOf(weight) + " " + terms.get(id) + " " + expansion;
+        }
+
+        return "#WAND(" + expansion + ")";
+    }
+}
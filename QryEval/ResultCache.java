@@ -0,0 +1,326 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of query results.  A result is keyed by the canonical form
+ * of the optimized query, the retrieval model and its parameters, the
+ * number of documents retrieved, and the version of the index, so a
+ * cached result is the result that evaluating the query would produce.
+ * <p>
+ * Results are kept in memory up to a maximum number of entries; when
+ * it is full, the least recently used result is evicted.  Results
+ * older than the time to live are not used.  If a directory is
+ * specified, results are also written there, one file per result, so
+ * that they survive the process; a result that isn't in memory is
+ * looked for there.  The cache is thread-safe; disk is read and
+ * written outside its lock.
+ * </p>
+ */
+public class ResultCache {
+
+    //  --------------- Constants and variables ---------------------
+
+    private static final int MAGIC = 0x52534c54;    // "RSLT"
+    private static final int FORMAT_VERSION = 1;
+
+    private final int capacity;
+    private final long timeToLive;
+    private final File directory;
+
+    /**
+     * The results, in order from least to most recently used.
+     */
+    private final LinkedHashMap<String, Entry> results =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private long hits = 0;
+    private long diskHits = 0;
+    private long misses = 0;
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     * A cached result and the time that it was cached.
+     */
+    private static class Entry {
+
+        private final ScoreList scores;
+        private final long time;
+
+        private Entry(ScoreList scores, long time) {
+            this.scores = scores;
+            this.time = time;
+        }
+    }
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * @param capacity   The largest number of results kept in memory.
+     * @param timeToLive How long a result may be used, in milliseconds,
+     *                   or 0 if results don't expire.
+     * @param directory  A directory for results on disk, or null.
+     * @throws IllegalArgumentException A parameter is out of range, or
+     *                                  the directory can't be created.
+     */
+    public ResultCache(int capacity, long timeToLive, File directory) {
+
+        if ((capacity < 0) || (timeToLive < 0)) {
+            throw new IllegalArgumentException("The cache capacity and time to live can't be negative.");
+        }
+
+        if ((directory != null) && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Unable to create the result cache directory " + directory);
+        }
+
+        this.capacity = capacity;
+        this.timeToLive = timeToLive;
+        this.directory = directory;
+    }
+
+    /**
+     * Get the key of a query's result.
+     *
+     * @param q     The optimized query.
+     * @param model The retrieval model.
+     * @param k     The number of documents retrieved.
+     * @return The key.
+     */
+    public static String getKey(Qry q, RetrievalModel model, int k) {
+        return Idx.getIndexVersion(Idx.getIndexReader()) + " " + model + " " + k + " " +
+                q.getCanonicalString();
+    }
+
+    /**
+     * Get a result from the cache.  Only the lookup in memory holds the
+     * cache's lock; a result that isn't in memory is read from disk
+     * without it.
+     *
+     * @param key The key of the result.
+     * @return A copy of the result, or null if it isn't cached.
+     */
+    public ScoreList get(String key) {
+
+        long now = System.currentTimeMillis();
+        Entry entry;
+
+        synchronized (this) {
+            entry = this.results.get(key);
+
+            if ((entry != null) && this.isExpired(entry, now)) {
+                this.results.remove(key);
+                entry = null;
+            }
+
+            if (entry != null)
+                this.hits++;
+            else if (this.directory == null)
+                this.misses++;
+        }
+
+        // Cached entries aren't changed, so they can be copied without the lock.
+        if (entry != null)
+            return entry.scores.copy();
+
+        if (this.directory == null)
+            return null;
+
+        entry = this.read(key);
+
+        if ((entry != null) && this.isExpired(entry, now))
+            entry = null;
+
+        synchronized (this) {
+            if (entry != null) {
+                this.diskHits++;
+                this.add(key, entry);
+            } else {
+                this.misses++;
+            }
+        }
+
+        return (entry != null) ? entry.scores.copy() : null;
+    }
+
+    /**
+     * Add a result to the cache.  Only the update of memory holds the
+     * cache's lock; the result is written to disk without it.
+     *
+     * @param key    The key of the result.
+     * @param scores The result.  The cache keeps a copy.
+     */
+    public void put(String key, ScoreList scores) {
+
+        Entry entry = new Entry(scores.copy(), System.currentTimeMillis());
+
+        synchronized (this) {
+            this.add(key, entry);
+        }
+
+        if (this.directory != null)
+            this.write(key, entry);
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getDiskHits() {
+        return this.diskHits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return this.results.size() + " results, " + this.hits + " hits, " +
+                this.diskHits + " disk hits, " + this.misses + " misses";
+    }
+
+    /**
+     * Add an entry to memory, evicting the least recently used entry
+     * if the cache is full.
+     */
+    private void add(String key, Entry entry) {
+
+        if (this.capacity == 0)
+            return;
+
+        this.results.put(key, entry);
+
+        if (this.results.size() > this.capacity) {
+            String lru = this.results.keySet().iterator().next();
+            this.results.remove(lru);
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return (this.timeToLive > 0) && (now - entry.time > this.timeToLive);
+    }
+
+    /**
+     * Get the file that stores a result on disk.  The file name is a
+     * hash of the key; the file also stores the key, so that a hash
+     * collision is detected when the file is read.
+     */
+    private File getFile(String key) {
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder();
+
+            for (byte b : digest)
+                name.append(String.format("%02x", b));
+
+            return new File(this.directory, name.append(".res").toString());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-1 is not available.", ex);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("UTF-8 is not available.", ex);
+        }
+    }
+
+    /**
+     * Read a result from disk.  A missing, unreadable, or mismatched
+     * file is a cache miss.
+     */
+    private Entry read(String key) {
+
+        File file = this.getFile(key);
+
+        if (!file.exists())
+            return null;
+
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if ((in.readInt() != MAGIC) || (in.readInt() != FORMAT_VERSION))
+                return null;
+
+            byte[] keyBytes = new byte[in.readInt()];
+            in.readFully(keyBytes);
+
+            if (!key.equals(new String(keyBytes, "UTF-8")))
+                return null;
+
+            long time = in.readLong();
+            int n = in.readInt();
+            ScoreList scores = new ScoreList();
+
+            for (int i = 0; i < n; i++) {
+                int docid = in.readInt();
+                scores.add(docid, in.readDouble());
+            }
+
+            return new Entry(scores, time);
+        } catch (IOException ex) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                    // Nothing to do.
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a result to disk.  The result is written to a temporary
+     * file that is renamed, so a reader never sees a partial file.
+     * Each write has its own temporary file, so threads that write the
+     * same result at once don't interfere.  A result that can't be
+     * written is only cached in memory.
+     */
+    private void write(String key, Entry entry) {
+
+        File file = this.getFile(key);
+        File tmp = null;
+
+        try {
+            tmp = File.createTempFile(file.getName(), ".tmp", this.directory);
+
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+
+            try {
+                byte[] keyBytes = key.getBytes("UTF-8");
+
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(keyBytes.length);
+                out.write(keyBytes);
+                out.writeLong(entry.time);
+                out.writeInt(entry.scores.size());
+
+                for (int i = 0; i < entry.scores.size(); i++) {
+                    out.writeInt(entry.scores.getDocid(i));
+                    out.writeDouble(entry.scores.getDocidScore(i));
+                }
+            } finally {
+                out.close();
+            }
+
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                tmp.renameTo(file);
+            }
+        } catch (IOException ex) {
+            if (tmp != null)
+                tmp.delete();
+            System.err.println("Warning:  Unable to write the result cache file " + file);
+        }
+    }
+}
@@ -6,10 +6,54 @@
  * The root class in the retrieval model hierarchy.  This hierarchy
  * is used to create objects that provide fast access to retrieval
  * model parameters and indicate to the query operators how the query
- * should be evaluated.
+ * should be evaluated.  Retrieval models are immutable:  parameters
+ * are set when the model is constructed, so one model may be shared
+ * by concurrent queries, and models with different parameters may be
+ * used at the same time.
  */
 public abstract class RetrievalModel {
 
+    /**
+     * If true, QryIopTerm operators stream postings from the index on
+     * demand instead of materializing full inverted lists when the
+     * query is initialized.
+     */
+    private final boolean streamingPostings;
+
+    /**
+     * The dynamic pruning algorithm that score operators may use to skip
+     * documents that cannot be in the top k:  "none", "wand", or "bmw"
+     * (Block-Max WAND).
+     */
+    private final String pruning;
+
+    /**
+     * A retrieval model that materializes inverted lists and doesn't
+     * prune documents.
+     */
+    protected RetrievalModel() {
+        this(false, "none");
+    }
+
+    /**
+     * @param streamingPostings True to stream postings, false to
+     *                          materialize inverted lists.
+     * @param pruning           The dynamic pruning algorithm:  "none",
+     *                          "wand", or "bmw".
+     * @throws IllegalArgumentException Unknown pruning algorithm.
+     */
+    protected RetrievalModel(boolean streamingPostings, String pruning) {
+
+        String p = pruning.toLowerCase();
+
+        if (!(p.equals("none") || p.equals("wand") || p.equals("bmw"))) {
+            throw new IllegalArgumentException("Unknown pruning algorithm " + pruning);
+        }
+
+        this.streamingPostings = streamingPostings;
+        this.pruning = p;
+    }
+
     /**
      * The name of the default query operator for the retrieval model.
      *
@@ -17,4 +61,33 @@ public abstract class RetrievalModel {
      */
     public abstract String defaultQrySopName();
 
+    /**
+     * Whether QryIopTerm operators stream postings from the index.
+     *
+     * @return True if postings are streamed, false if they are materialized.
+     */
+    public boolean getStreamingPostings() {
+        return this.streamingPostings;
+    }
+
+    /**
+     * Get the dynamic pruning algorithm.
+     *
+     * @return "none", "wand", or "bmw".
+     */
+    public String getPruning() {
+        return this.pruning;
+    }
+
+    /**
+     * Get a string that names the retrieval model and the parameters
+     * that affect document scores, e.g., to identify cached results.
+     * Streaming and pruning don't change scores, so they aren't named.
+     *
+     * @return The string version of the retrieval model.
+     */
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName();
+    }
 }
@@ -2,32 +2,56 @@
  * Created by Silun Wang on 15/9/26.
  */
 public class RetrievalModelBM25 extends RetrievalModel {
-    static double k1;
-    static double b;
-    static double k3;
+    private final double k1;
+    private final double b;
+    private final double k3;
 
-    public static void setK1(double k1) {
-        RetrievalModelBM25.k1 = k1;
+    /**
+     * @param k1 Controls how quickly the tf weight saturates; at least 0.
+     * @param b  Controls document length normalization; 0 to 1.
+     * @param k3 Controls how quickly the qtf weight saturates; at least 0.
+     * @throws IllegalArgumentException A parameter is out of range.
+     */
+    public RetrievalModelBM25(double k1, double b, double k3) {
+        this(k1, b, k3, false, "none");
     }
 
-    public static void setB(double b) {
-        RetrievalModelBM25.b = b;
+    /**
+     * @param k1                Controls how quickly the tf weight saturates.
+     * @param b                 Controls document length normalization.
+     * @param k3                Controls how quickly the qtf weight saturates.
+     * @param streamingPostings True to stream postings from the index.
+     * @param pruning           The dynamic pruning algorithm.
+     * @throws IllegalArgumentException A parameter is out of range.
+     */
+    public RetrievalModelBM25(double k1, double b, double k3,
+                              boolean streamingPostings, String pruning) {
+        super(streamingPostings, pruning);
+
+        if ((k1 < 0) || (b < 0) || (b > 1) || (k3 < 0)) {
+            throw new IllegalArgumentException("BM25 requires k1 >= 0, 0 <= b <= 1, and k3 >= 0.");
+        }
+
+        this.k1 = k1;
+        this.b = b;
+        this.k3 = k3;
     }
 
-    public static void setK3(double k3) {
-        RetrievalModelBM25.k3 = k3;
+    public double getB() {
+        return this.b;
     }
 
-    public static double getB() {
-        return b;
+    public double getK1() {
+        return this.k1;
     }
 
-    public static double getK1() {
-        return k1;
+    public double getK3() {
+        return this.k3;
     }
 
-    public static double getK3() {
-        return k3;
+    @Override
+    public String toString() {
+        return super.toString() + "(k_1=" + this.k1 + ", b=" + this.b + ", k_3=" + this.k3 + ")";
     }
 
     @Override
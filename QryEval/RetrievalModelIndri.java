@@ -2,23 +2,68 @@
  * Created by Silun Wang on 15/9/27.
  */
 public class RetrievalModelIndri extends RetrievalModel {
-    static double lambda;
-    static double mu;
+    private final double lambda;
+    private final double mu;
 
-    public static void setLambda(double lambda) {
-        RetrievalModelIndri.lambda = lambda;
+    /**
+     * If true, query operators combine log probabilities instead of
+     * probabilities, which avoids Math.pow and underflow in long
+     * queries.  Document scores are converted back to probabilities
+     * when results are output.
+     */
+    private final boolean logSpace;
+
+    /**
+     * @param lambda The weight of the collection probability; 0 to 1.
+     * @param mu     The Dirichlet prior; at least 0.
+     * @throws IllegalArgumentException A parameter is out of range.
+     */
+    public RetrievalModelIndri(double lambda, double mu) {
+        this(lambda, mu, false, false, "none");
+    }
+
+    /**
+     * @param lambda            The weight of the collection probability.
+     * @param mu                The Dirichlet prior.
+     * @param logSpace          True to score with log probabilities.
+     * @param streamingPostings True to stream postings from the index.
+     * @param pruning           The dynamic pruning algorithm.
+     * @throws IllegalArgumentException A parameter is out of range.
+     */
+    public RetrievalModelIndri(double lambda, double mu, boolean logSpace,
+                               boolean streamingPostings, String pruning) {
+        super(streamingPostings, pruning);
+
+        if ((lambda < 0) || (lambda > 1) || (mu < 0)) {
+            throw new IllegalArgumentException("Indri requires 0 <= lambda <= 1 and mu >= 0.");
+        }
+
+        this.lambda = lambda;
+        this.mu = mu;
+        this.logSpace = logSpace;
+    }
+
+    public double getLambda() {
+        return this.lambda;
     }
 
-    public static void setMu(double mu) {
-        RetrievalModelIndri.mu = mu;
+    public double getMu() {
+        return this.mu;
     }
 
-    public static double getLambda() {
-        return lambda;
+    /**
+     * Whether query operators score documents with log probabilities.
+     *
+     * @return True if scores are log probabilities.
+     */
+    public boolean getLogSpace() {
+        return this.logSpace;
     }
 
-    public static double getMu() {
-        return mu;
+    @Override
+    public String toString() {
+        return super.toString() + "(mu=" + this.mu + ", lambda=" + this.lambda +
+                ", logSpace=" + this.logSpace + ")";
     }
 
     @Override
@@ -3,6 +3,17 @@
  */
 public class RetrievalModelRankedBoolean extends RetrievalModel {
 
+    public RetrievalModelRankedBoolean() {
+    }
+
+    /**
+     * @param streamingPostings True to stream postings from the index.
+     * @param pruning           The dynamic pruning algorithm.
+     */
+    public RetrievalModelRankedBoolean(boolean streamingPostings, String pruning) {
+        super(streamingPostings, pruning);
+    }
+
     public String defaultQrySopName() {
         return new String("#or");
     }
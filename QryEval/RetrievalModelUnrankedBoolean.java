@@ -9,6 +9,17 @@
  */
 public class RetrievalModelUnrankedBoolean extends RetrievalModel {
 
+    public RetrievalModelUnrankedBoolean() {
+    }
+
+    /**
+     * @param streamingPostings True to stream postings from the index.
+     * @param pruning           The dynamic pruning algorithm.
+     */
+    public RetrievalModelUnrankedBoolean(boolean streamingPostings, String pruning) {
+        super(streamingPostings, pruning);
+    }
+
     public String defaultQrySopName() {
         return new String("#or");
     }
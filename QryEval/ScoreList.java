@@ -15,22 +15,29 @@ import java.util.List;
 public class ScoreList {
 
     //  A utility class to create a <internalDocid, externalDocid, score>
-    //  object.
+    //  object.  The external docid is looked up the first time that it
+    //  is needed, which is usually only for ties and for the results
+    //  that are reported.
 
     private class ScoreListEntry {
         private int docid;
-        private String externalId;
+        private String externalId = null;
         private double score;
 
         private ScoreListEntry(int internalDocid, double score) {
             this.docid = internalDocid;
             this.score = score;
+        }
 
-            try {
-                this.externalId = Idx.getExternalDocid(this.docid);
-            } catch (IOException ex) {
-                ex.printStackTrace();
+        private String getExternalId() {
+            if (this.externalId == null) {
+                try {
+                    this.externalId = Idx.getExternalDocid(this.docid);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
             }
+            return this.externalId;
         }
     }
 
@@ -60,6 +67,16 @@ public class ScoreList {
     }
 
 
+    /**
+     * Get the external docid of the n'th entry.
+     *
+     * @param n The index of the requested document.
+     * @return The external document id.
+     */
+    public String getExternalDocid(int n) {
+        return this.scores.get(n).getExternalId();
+    }
+
     /**
      * Get the score of the n'th entry.
      *
@@ -80,6 +97,24 @@ public class ScoreList {
         this.scores.get(n).score = score;
     }
 
+    /**
+     * Copy the score list.
+     *
+     * @return The copy.
+     */
+    public ScoreList copy() {
+
+        ScoreList copy = new ScoreList();
+
+        for (ScoreListEntry entry : this.scores) {
+            ScoreListEntry e = new ScoreListEntry(entry.docid, entry.score);
+            e.externalId = entry.externalId;
+            copy.scores.add(e);
+        }
+
+        return copy;
+    }
+
     /**
      * Get the size of the score list.
      *
@@ -101,12 +136,8 @@ public class ScoreList {
                 return -1;
             else if (s1.score < s2.score)
                 return 1;
-            else if (s1.externalId.compareTo(s2.externalId) > 0)
-                return 1;
-            else if (s1.externalId.compareTo(s2.externalId) < 0)
-                return -1;
             else
-                return 0;
+                return s1.getExternalId().compareTo(s2.getExternalId());
         }
     }
 
@@ -55,7 +55,7 @@ public class TermVector {
 
         //  Fetch the term vector.
 
-        this.luceneTerms = Idx.INDEXREADER.getTermVector(docId, fieldName);
+        this.luceneTerms = Idx.getIndexReader().getTermVector(docId, fieldName);
 
         //  Allocate space for stems. The 0'th stem indicates a stopword.
 
@@ -193,7 +193,7 @@ public class TermVector {
      * @throws java.io.IOException Error accessing the Lucene index
      */
     public long totalStemFreq(int i) throws IOException {
-        return Idx.INDEXREADER.totalTermFreq(terms[i]);
+        return Idx.getIndexReader().totalTermFreq(terms[i]);
     }
 
     /**
@@ -204,7 +204,7 @@ public class TermVector {
      * @throws java.io.IOException Error accessing the Lucene index
      */
     public int stemDf(int i) throws IOException {
-        return Idx.INDEXREADER.docFreq(terms[i]);
+        return Idx.getIndexReader().docFreq(terms[i]);
     }
 
 }
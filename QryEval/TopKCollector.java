@@ -0,0 +1,231 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.IOException;
+
+/**
+ * Collects the k best documents of a query during document-at-a-time
+ * evaluation.  The documents are kept in a bounded min-heap, so the
+ * cost per matching document is O(log k), and the memory used is O(k)
+ * no matter how many documents match.  Documents are ordered the same
+ * way that ScoreList.sort orders them:  by score, then by external
+ * document id.  External ids are looked up only to break ties.
+ * <p>
+ * The score of the worst document in a full heap is a threshold that
+ * query operators can use to skip documents that cannot be in the
+ * top k.
+ * </p>
+ */
+public class TopKCollector {
+
+    //  --------------- Constants and variables ---------------------
+
+    /**
+     * The default number of documents to collect.
+     */
+    public static final int DEFAULT_K = 100;
+
+    private final int k;
+
+    /**
+     * The heap, stored in parallel arrays.  The 0'th entry is the
+     * worst document.  External ids are null until they are needed.
+     */
+    private final int[] docids;
+    private final double[] scores;
+    private final String[] externalIds;
+    private int size = 0;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     * @param k The number of documents to collect.
+     */
+    public TopKCollector(int k) {
+
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1.");
+        }
+
+        this.k = k;
+        this.docids = new int[k];
+        this.scores = new double[k];
+        this.externalIds = new String[k];
+    }
+
+    /**
+     * Offer a document to the collector.  It is kept if it is one of
+     * the k best documents seen so far.
+     *
+     * @param docid An internal document id.
+     * @param score The document's score.
+     * @throws java.io.IOException Error accessing the Lucene index.
+     */
+    public void add(int docid, double score) throws IOException {
+
+        if (this.size < this.k) {
+            this.docids[this.size] = docid;
+            this.scores[this.size] = score;
+            this.externalIds[this.size] = null;
+            this.siftUp(this.size++);
+            return;
+        }
+
+        //  The heap is full.  The new document replaces the worst
+        //  document only if it is better.
+
+        if ((score < this.scores[0]) ||
+                ((score == this.scores[0]) &&
+                        (Idx.getExternalDocid(docid).compareTo(this.getExternalId(0)) > 0))) {
+            return;
+        }
+
+        this.docids[0] = docid;
+        this.scores[0] = score;
+        this.externalIds[0] = null;
+        this.siftDown(0);
+    }
+
+    /**
+     * Offer the documents of another collector to this collector, e.g.,
+     * to merge the top k documents of different ranges of docids.
+     *
+     * @param other Another collector.
+     * @throws java.io.IOException Error accessing the Lucene index.
+     */
+    public void addAll(TopKCollector other) throws IOException {
+        for (int i = 0; i < other.size; i++) {
+            this.add(other.docids[i], other.scores[i]);
+        }
+    }
+
+    /**
+     * Get the number of documents that the collector keeps.
+     *
+     * @return k.
+     */
+    public int getK() {
+        return this.k;
+    }
+
+    /**
+     * Get the score that a document must reach to be collected.  Until
+     * the collector is full, every document is collected.  When it is
+     * full, a document with a lower score is not collected; a document
+     * with the same score is collected only if it wins the external id
+     * tie-break.
+     *
+     * @return The score of the k'th best document, or negative infinity.
+     */
+    public double getThreshold() {
+        if (this.size < this.k) {
+            return Double.NEGATIVE_INFINITY;
+        } else {
+            return this.scores[0];
+        }
+    }
+
+    /**
+     * Get the number of documents collected.
+     *
+     * @return The number of documents collected.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Get the collected documents as a sorted score list.
+     *
+     * @return A score list sorted by score and external document id.
+     */
+    public ScoreList toScoreList() {
+
+        ScoreList r = new ScoreList();
+
+        for (int i = 0; i < this.size; i++) {
+            r.add(this.docids[i], this.scores[i]);
+        }
+
+        r.sort();
+        return r;
+    }
+
+    /**
+     * Get the external document id of the i'th heap entry.
+     *
+     * @param i An index into the heap.
+     * @return The external document id.
+     * @throws java.io.IOException Error accessing the Lucene index.
+     */
+    private String getExternalId(int i) throws IOException {
+        if (this.externalIds[i] == null) {
+            this.externalIds[i] = Idx.getExternalDocid(this.docids[i]);
+        }
+        return this.externalIds[i];
+    }
+
+    /**
+     * Is the i'th heap entry worse than the j'th?  Lower scores are
+     * worse.  Ties are broken by external id; the larger id is worse.
+     */
+    private boolean isWorse(int i, int j) {
+
+        if (this.scores[i] != this.scores[j]) {
+            return this.scores[i] < this.scores[j];
+        }
+
+        try {
+            return this.getExternalId(i).compareTo(this.getExternalId(j)) > 0;
+        } catch (IOException ex) {
+            throw new IllegalStateException("Error reading an external document id.", ex);
+        }
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+
+            if (!this.isWorse(i, parent))
+                break;
+
+            this.swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int worst = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+
+            if ((left < this.size) && this.isWorse(left, worst))
+                worst = left;
+
+            if ((right < this.size) && this.isWorse(right, worst))
+                worst = right;
+
+            if (worst == i)
+                break;
+
+            this.swap(i, worst);
+            i = worst;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int docid = this.docids[i];
+        double score = this.scores[i];
+        String externalId = this.externalIds[i];
+
+        this.docids[i] = this.docids[j];
+        this.scores[i] = this.scores[j];
+        this.externalIds[i] = this.externalIds[j];
+
+        this.docids[j] = docid;
+        this.scores[j] = score;
+        this.externalIds[j] = externalId;
+    }
+}